@@ -4,6 +4,7 @@ import android.app.Activity
 import android.os.Bundle
 import android.widget.Button
 import android.widget.CheckBox
+import android.widget.EditText
 import android.widget.TimePicker
 import android.widget.Toast
 import androidx.appcompat.app.AppCompatActivity
@@ -14,8 +15,11 @@ class AddAlarmActivity : AppCompatActivity() {
     private lateinit var repeatDaysContainer: android.widget.LinearLayout
     private lateinit var saveAlarmButton: Button
     private lateinit var dayCheckBoxes: List<CheckBox>
+    private lateinit var everyNDaysInput: EditText
     
     private var editingAlarmId: Long? = null
+    // Rule of the alarm being edited; only every-N-days rules can be edited here, others are kept unless days are picked
+    private var editingRecurrence: RecurrenceRule? = null
     
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -25,6 +29,7 @@ class AddAlarmActivity : AppCompatActivity() {
         repeatCheckBox = findViewById(R.id.repeatCheckBox)
         repeatDaysContainer = findViewById(R.id.repeatDaysContainer)
         saveAlarmButton = findViewById(R.id.saveAlarmButton)
+        everyNDaysInput = findViewById(R.id.everyNDaysInput)
         
         // Get day checkboxes
         dayCheckBoxes = listOf(
@@ -56,11 +61,28 @@ class AddAlarmActivity : AppCompatActivity() {
     private fun loadAlarmData() {
         val alarmId = editingAlarmId ?: return
         val alarmDatabase = AlarmDatabase(this)
-        val alarm = alarmDatabase.getAlarm(alarmId) ?: return
         
+        // The read may hit disk in a cold process; saving waits until the fields are filled in
+        saveAlarmButton.isEnabled = false
+        AppExecutors.diskIO().execute {
+            val alarm = alarmDatabase.getAlarm(alarmId)
+            runOnUiThread {
+                if (!isDestroyed) {
+                    alarm?.let { showAlarm(it) }
+                    saveAlarmButton.isEnabled = true
+                }
+            }
+        }
+    }
+    
+    private fun showAlarm(alarm: Alarm) {
         timePicker.hour = alarm.hour
         timePicker.minute = alarm.minute
         repeatCheckBox.isChecked = alarm.isRepeating
+        editingRecurrence = alarm.recurrence
+        (alarm.recurrence?.pattern as? RecurrenceRule.Pattern.EveryNDays)?.let {
+            everyNDaysInput.setText(it.interval.toString())
+        }
         
         if (alarm.isRepeating) {
             repeatDaysContainer.visibility = android.view.View.VISIBLE
@@ -92,42 +114,69 @@ class AddAlarmActivity : AppCompatActivity() {
             emptySet<Int>()
         }
         
-        if (isRepeating && repeatDays.isEmpty()) {
+        val interval = everyNDaysInput.text.toString().toIntOrNull()
+        if (isRepeating && interval != null && interval < 1) {
+            Toast.makeText(this, "Repeat every at least one day", Toast.LENGTH_SHORT).show()
+            return
+        }
+        val recurrence = when {
+            !isRepeating -> null
+            // An interval replaces the picked days
+            interval != null -> everyNDays(interval)
+            repeatDays.isEmpty() -> editingRecurrence?.takeIf { it.pattern !is RecurrenceRule.Pattern.EveryNDays }
+            else -> null
+        }
+        if (isRepeating && repeatDays.isEmpty() && recurrence == null) {
             Toast.makeText(this, "Please select at least one day for repeating alarm", Toast.LENGTH_SHORT).show()
             return
         }
+        val savedDays = if (recurrence != null) emptySet() else repeatDays
         
         val alarmDatabase = AlarmDatabase(this)
-        
-        // Get existing alarm to preserve enabled state if editing
-        val existingAlarm = editingAlarmId?.let { alarmDatabase.getAlarm(it) }
-        val isEnabled = existingAlarm?.isEnabled ?: true
-        
-        val alarm = Alarm(
-            id = editingAlarmId ?: 0L,
-            hour = hour,
-            minute = minute,
-            isRepeating = isRepeating,
-            repeatDays = repeatDays,
-            isEnabled = isEnabled
-        )
-        
-        val savedId = alarmDatabase.saveAlarm(alarm)
-        
-        // Cancel old alarm and schedule new one
-        if (existingAlarm != null) {
-            AlarmScheduler.cancelAlarm(this, existingAlarm)
+        val alarmId = editingAlarmId ?: 0L
+        
+        saveAlarmButton.isEnabled = false
+        AppExecutors.diskIO().execute {
+            // The scheduler observes the change and re-arms the alarm on this thread
+            val result = alarmDatabase.edit {
+                // Get existing alarm to preserve enabled state if editing
+                val isEnabled = get(alarmId)?.isEnabled ?: true
+                save(Alarm(
+                    id = alarmId,
+                    hour = hour,
+                    minute = minute,
+                    isRepeating = isRepeating,
+                    repeatDays = savedDays,
+                    isEnabled = isEnabled,
+                    recurrence = recurrence
+                ))
+            }
+            
+            val savedAlarm = result.changes.firstOrNull()?.after
+            val conflicts = savedAlarm?.let { alarmDatabase.getFireIndex().conflictsWith(it) } ?: emptySet()
+            val message = if (conflicts.isEmpty()) {
+                "Alarm saved"
+            } else {
+                "Alarm saved. Another alarm already rings at this time"
+            }
+            runOnUiThread {
+                Toast.makeText(applicationContext, message, Toast.LENGTH_SHORT).show()
+                if (!isDestroyed) {
+                    setResult(Activity.RESULT_OK)
+                    finish()
+                }
+            }
         }
-        
-        // Get the saved alarm with correct ID
-        val savedAlarm = alarmDatabase.getAlarm(savedId) ?: alarm.copy(id = savedId)
-        
-        // Schedule the alarm
-        AlarmScheduler.scheduleAlarm(this, savedAlarm)
-        
-        Toast.makeText(this, "Alarm saved", Toast.LENGTH_SHORT).show()
-        setResult(Activity.RESULT_OK)
-        finish()
+    }
+    
+    // Keeps the edited rule, and so its first day, if only the time changed
+    private fun everyNDays(interval: Int): RecurrenceRule {
+        val current = editingRecurrence
+        if (current != null && (current.pattern as? RecurrenceRule.Pattern.EveryNDays)?.interval == interval) {
+            return current
+        }
+        val today = NextFireTimeCalculator.systemDefault().localEpochDay(System.currentTimeMillis())
+        return RecurrenceRule(RecurrenceRule.Pattern.EveryNDays(interval, today))
     }
 }
 
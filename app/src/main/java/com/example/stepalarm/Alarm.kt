@@ -8,71 +8,71 @@ data class Alarm(
     val minute: Int,
     val isRepeating: Boolean,
     val repeatDays: Set<Int>, // Set of Calendar.DAY_OF_WEEK values (Calendar.SUNDAY = 1, etc.)
-    val isEnabled: Boolean
+    val isEnabled: Boolean,
+    val recurrence: RecurrenceRule? = null // Replaces repeatDays when set
 ) {
-    fun getTimeString(): String {
-        return String.format("%02d:%02d", hour, minute)
-    }
-    
-    fun getRepeatDaysString(): String {
-        if (!isRepeating || repeatDays.isEmpty()) {
-            return "No repeat"
+    companion object {
+        // Inverse of getRepeatDayMask()
+        @JvmStatic
+        fun daysFromMask(mask: Int): Set<Int> {
+            val days = LinkedHashSet<Int>()
+            for (day in Calendar.SUNDAY..Calendar.SATURDAY) {
+                if (mask and (1 shl (day - 1)) != 0) {
+                    days.add(day)
+                }
+            }
+            return days
         }
         
-        val dayNames = arrayOf("Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat")
-        val sortedDays = repeatDays.sorted()
-        return sortedDays.joinToString(", ") { dayNames[it - 1] }
-    }
-    
-    fun getNextAlarmTime(): Long {
-        val calendar = Calendar.getInstance().apply {
-            set(Calendar.HOUR_OF_DAY, hour)
-            set(Calendar.MINUTE, minute)
-            set(Calendar.SECOND, 0)
-            set(Calendar.MILLISECOND, 0)
+        @JvmStatic
+        fun formatTime(hour: Int, minute: Int): String {
+            return String.format("%02d:%02d", hour, minute)
         }
         
-        if (isRepeating && repeatDays.isNotEmpty()) {
-            // Find the next occurrence based on repeat days
-            val currentDayOfWeek = Calendar.getInstance().get(Calendar.DAY_OF_WEEK)
-            val currentTime = Calendar.getInstance().timeInMillis
-            
-            // Check if today is a repeat day and time hasn't passed
-            if (repeatDays.contains(currentDayOfWeek) && calendar.timeInMillis > currentTime) {
-                return calendar.timeInMillis
+        @JvmStatic
+        fun formatRepeatDays(isRepeating: Boolean, repeatDayMask: Int): String {
+            if (!isRepeating || repeatDayMask == 0) {
+                return "No repeat"
             }
             
-            // Find next repeat day
-            var daysToAdd = 1
-            var found = false
-            while (daysToAdd <= 7 && !found) {
-                val nextDay = (currentDayOfWeek + daysToAdd - 1) % 7 + 1
-                if (repeatDays.contains(nextDay)) {
-                    calendar.add(Calendar.DAY_OF_YEAR, daysToAdd)
-                    found = true
-                } else {
-                    daysToAdd++
+            val dayNames = arrayOf("Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat")
+            val builder = StringBuilder()
+            for (index in dayNames.indices) {
+                if (repeatDayMask and (1 shl index) != 0) {
+                    if (builder.isNotEmpty()) {
+                        builder.append(", ")
+                    }
+                    builder.append(dayNames[index])
                 }
             }
-            
-            if (!found) {
-                // If no repeat day found in next 7 days, find the earliest one
-                val earliestDay = repeatDays.minOrNull() ?: currentDayOfWeek
-                val daysUntilEarliest = if (earliestDay >= currentDayOfWeek) {
-                    earliestDay - currentDayOfWeek
-                } else {
-                    7 - currentDayOfWeek + earliestDay
-                }
-                calendar.add(Calendar.DAY_OF_YEAR, daysUntilEarliest)
-            }
+            return builder.toString()
+        }
+    }
+    
+    // Packs repeatDays into 7 bits, bit (day - 1) for each Calendar.DAY_OF_WEEK
+    fun getRepeatDayMask(): Int {
+        var mask = 0
+        repeatDays.forEach { day -> mask = mask or (1 shl (day - 1)) }
+        return mask
+    }
+    
+    fun getTimeString(): String {
+        return formatTime(hour, minute)
+    }
+    
+    fun getRepeatDaysString(): String {
+        return recurrence?.describe() ?: formatRepeatDays(isRepeating, getRepeatDayMask())
+    }
+    
+    // Next time this alarm rings after now; one-time alarms ring at the next occurrence of their time
+    fun getNextAlarmTime(): Long {
+        recurrence?.let { return it.nextFireTime(hour * 60 + minute, System.currentTimeMillis()) }
+        val dayMask = if (isRepeating && repeatDays.isNotEmpty()) {
+            getRepeatDayMask()
         } else {
-            // One-time alarm: if time has passed, set for tomorrow
-            if (calendar.timeInMillis <= System.currentTimeMillis()) {
-                calendar.add(Calendar.DAY_OF_YEAR, 1)
-            }
+            NextFireTimeCalculator.ALL_DAYS
         }
-        
-        return calendar.timeInMillis
+        return NextFireTimeCalculator.systemDefault()
+            .nextFireTime(hour, minute, dayMask, System.currentTimeMillis())
     }
-}
-
+}
\ No newline at end of file
@@ -11,6 +11,8 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.provider.Settings;
+import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.WindowManager;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -27,6 +29,7 @@ public class AlarmActivity extends Activity {
     private TextView remainingStepsText;
     private Handler handler;
     private Runnable updateRunnable;
+    private EventBus.Subscription stepsCompletedSubscription;
 
     private final ServiceConnection serviceConnection = new ServiceConnection() {
         @Override
@@ -35,6 +38,7 @@ public class AlarmActivity extends Activity {
             StepCounterService.LocalBinder binder = (StepCounterService.LocalBinder) service;
             stepCounterService = binder.getService();
             isBound = true;
+            AlarmTimeline.get(AlarmActivity.this).mark(TimelineStage.SERVICE_CONNECTED);
             LogFileWriter.logInfo(AlarmActivity.this, TAG, "StepCounterService obtained, starting counting");
             stepCounterService.resetStepCount();
             stepCounterService.startCounting();
@@ -52,11 +56,13 @@ public class AlarmActivity extends Activity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        AlarmTimeline.get(this).mark(TimelineStage.ACTIVITY_CREATED);
         LogFileWriter.logInfo(this, TAG, "=== AlarmActivity.onCreate() called ===");
         super.onCreate(savedInstanceState);
 
         setContentView(R.layout.activity_alarm);
         LogFileWriter.logInfo(this, TAG, "Layout set successfully");
+        watchFirstFrame();
 
         // Keep screen on and show over lock screen
         getWindow().addFlags(
@@ -74,6 +80,12 @@ public class AlarmActivity extends Activity {
         handler = new Handler(Looper.getMainLooper());
         LogFileWriter.logInfo(this, TAG, "Handler created");
 
+        stepsCompletedSubscription = EventBus.getDefault().subscribe(
+            AlarmEvents.StepsCompleted.class, EventBus.ThreadMode.MAIN, event -> {
+                LogFileWriter.logInfo(this, TAG, "StepsCompleted event received");
+                stopAlarm();
+            });
+
         // Check for overlay permission
         if (!Settings.canDrawOverlays(this)) {
             LogFileWriter.logWarning(this, TAG, "Overlay permission not granted");
@@ -94,6 +106,19 @@ public class AlarmActivity extends Activity {
         LogFileWriter.logInfo(this, TAG, "Service binding initiated");
     }
 
+    private void watchFirstFrame() {
+        final View decorView = getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnDrawListener(new ViewTreeObserver.OnDrawListener() {
+            @Override
+            public void onDraw() {
+                AlarmTimeline.get(AlarmActivity.this).mark(TimelineStage.FIRST_FRAME);
+                // Listeners can't be removed from inside onDraw
+                final ViewTreeObserver.OnDrawListener listener = this;
+                decorView.post(() -> decorView.getViewTreeObserver().removeOnDrawListener(listener));
+            }
+        });
+    }
+
     private void startOverlayService() {
         LogFileWriter.logInfo(this, TAG, "Starting AlarmOverlayService");
         Intent intent = new Intent(this, AlarmOverlayService.class);
@@ -118,7 +143,12 @@ public class AlarmActivity extends Activity {
         updateRunnable = new Runnable() {
             @Override
             public void run() {
-                updateStepCount();
+                Tracing.beginSection("AlarmActivity.updateStepCount");
+                try {
+                    updateStepCount();
+                } finally {
+                    Tracing.endSection();
+                }
                 handler.postDelayed(this, UPDATE_INTERVAL);
             }
         };
@@ -146,19 +176,22 @@ public class AlarmActivity extends Activity {
         stepCountText.setText("Steps taken: " + steps);
         remainingStepsText.setText("Steps remaining: " + remaining);
 
-        // Update overlay service
-        Intent intent = new Intent(this, AlarmOverlayService.class);
-        intent.putExtra("steps", (int) steps);
-        startService(intent);
-
         if (steps >= REQUIRED_STEPS) {
+            AlarmTimeline.get(this).mark(TimelineStage.TARGET_REACHED);
             LogFileWriter.logInfo(this, TAG, "Required steps reached: " + steps);
             stopAlarm();
         }
     }
 
     private void stopAlarm() {
+        if (isFinishing()) {
+            return;
+        }
         LogFileWriter.logInfo(this, TAG, "Stopping alarm");
+        if (stepsCompletedSubscription != null) {
+            stepsCompletedSubscription.unsubscribe();
+            stepsCompletedSubscription = null;
+        }
         stopStepCountUpdates();
 
         if (stepCounterService != null) {
@@ -176,11 +209,9 @@ public class AlarmActivity extends Activity {
         stopService(new Intent(this, AlarmOverlayService.class));
         LogFileWriter.logInfo(this, TAG, "Overlay service stopped");
 
-        // Stop the alarm sound using the STOP_ALARM action
-        Intent intent = new Intent(this, AlarmReceiver.class);
-        intent.setAction("STOP_ALARM");
-        sendBroadcast(intent);
-        LogFileWriter.logInfo(this, TAG, "STOP_ALARM broadcast sent");
+        // Stop the alarm sound
+        EventBus.getDefault().post(AlarmEvents.STOP_ALARM);
+        LogFileWriter.logInfo(this, TAG, "StopAlarm event posted");
 
         finish();
         LogFileWriter.logInfo(this, TAG, "Activity finished");
@@ -191,6 +222,10 @@ public class AlarmActivity extends Activity {
         LogFileWriter.logInfo(this, TAG, "=== AlarmActivity.onDestroy() called ===");
         super.onDestroy();
         stopStepCountUpdates();
+        if (stepsCompletedSubscription != null) {
+            stepsCompletedSubscription.unsubscribe();
+            stepsCompletedSubscription = null;
+        }
         if (isBound) {
             unbindService(serviceConnection);
             isBound = false;
@@ -6,13 +6,58 @@ import android.view.ViewGroup
 import android.widget.ImageButton
 import android.widget.Switch
 import android.widget.TextView
+import androidx.recyclerview.widget.DiffUtil
+import androidx.recyclerview.widget.ListAdapter
 import androidx.recyclerview.widget.RecyclerView
 
+// ListAdapter diffs submitted lists on a background thread and only rebinds rows that changed
 class AlarmAdapter(
-    private var alarms: List<Alarm>,
     private val onToggleEnabled: (Alarm) -> Unit,
     private val onDelete: (Alarm) -> Unit
-) : RecyclerView.Adapter<AlarmAdapter.AlarmViewHolder>() {
+) : ListAdapter<AlarmTable.Row, AlarmAdapter.AlarmViewHolder>(DIFF_CALLBACK) {
+    
+    companion object {
+        // Only the enabled flag changed, so just the switch needs updating
+        private const val PAYLOAD_ENABLED = "enabled"
+        
+        private val DIFF_CALLBACK = object : DiffUtil.ItemCallback<AlarmTable.Row>() {
+            override fun areItemsTheSame(oldItem: AlarmTable.Row, newItem: AlarmTable.Row): Boolean {
+                return oldItem.id == newItem.id
+            }
+            
+            override fun areContentsTheSame(oldItem: AlarmTable.Row, newItem: AlarmTable.Row): Boolean {
+                return oldItem == newItem
+            }
+            
+            override fun getChangePayload(oldItem: AlarmTable.Row, newItem: AlarmTable.Row): Any? {
+                val onlyEnabledChanged = oldItem.minuteOfDay == newItem.minuteOfDay &&
+                    oldItem.isRepeating == newItem.isRepeating &&
+                    oldItem.repeatDayMask == newItem.repeatDayMask &&
+                    oldItem.recurrence == newItem.recurrence
+                return if (onlyEnabledChanged) PAYLOAD_ENABLED else null
+            }
+        }
+        
+        // Display strings are cached: one per minute of day and one per repeat flag/day mask combination
+        private val timeStrings = arrayOfNulls<String>(WeeklyFireIndex.MINUTES_PER_DAY)
+        private val repeatStrings = arrayOfNulls<String>(256)
+        
+        private fun timeString(row: AlarmTable.Row): String {
+            return timeStrings[row.minuteOfDay]
+                ?: Alarm.formatTime(row.hour, row.minute).also { timeStrings[row.minuteOfDay] = it }
+        }
+        
+        private fun repeatString(row: AlarmTable.Row): String {
+            row.recurrence?.let { return it.describe() }
+            val key = (if (row.isRepeating) 0x80 else 0) or row.repeatDayMask
+            return repeatStrings[key]
+                ?: Alarm.formatRepeatDays(row.isRepeating, row.repeatDayMask).also { repeatStrings[key] = it }
+        }
+    }
+    
+    init {
+        setHasStableIds(true)
+    }
     
     class AlarmViewHolder(itemView: View) : RecyclerView.ViewHolder(itemView) {
         val timeText: TextView = itemView.findViewById(R.id.alarmTimeText)
@@ -24,32 +69,42 @@ class AlarmAdapter(
     override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): AlarmViewHolder {
         val view = LayoutInflater.from(parent.context)
             .inflate(R.layout.item_alarm, parent, false)
-        return AlarmViewHolder(view)
-    }
-    
-    override fun onBindViewHolder(holder: AlarmViewHolder, position: Int) {
-        val alarm = alarms[position]
-        
-        holder.timeText.text = alarm.getTimeString()
-        holder.repeatText.text = alarm.getRepeatDaysString()
-        holder.enabledSwitch.isChecked = alarm.isEnabled
+        val holder = AlarmViewHolder(view)
         
+        // Listeners are created once per view holder and look up the row they are bound to
         holder.enabledSwitch.setOnCheckedChangeListener { _, isChecked ->
-            if (isChecked != alarm.isEnabled) {
-                onToggleEnabled(alarm)
+            val position = holder.bindingAdapterPosition
+            if (position != RecyclerView.NO_POSITION) {
+                val row = getItem(position)
+                if (isChecked != row.isEnabled) {
+                    onToggleEnabled(row.toAlarm())
+                }
             }
         }
         
         holder.deleteButton.setOnClickListener {
-            onDelete(alarm)
+            val position = holder.bindingAdapterPosition
+            if (position != RecyclerView.NO_POSITION) {
+                onDelete(getItem(position).toAlarm())
+            }
         }
+        return holder
     }
     
-    override fun getItemCount(): Int = alarms.size
+    override fun onBindViewHolder(holder: AlarmViewHolder, position: Int) {
+        val row = getItem(position)
+        holder.timeText.text = timeString(row)
+        holder.repeatText.text = repeatString(row)
+        holder.enabledSwitch.isChecked = row.isEnabled
+    }
     
-    fun updateAlarms(newAlarms: List<Alarm>) {
-        alarms = newAlarms
-        notifyDataSetChanged()
+    override fun onBindViewHolder(holder: AlarmViewHolder, position: Int, payloads: MutableList<Any>) {
+        if (payloads.isNotEmpty() && payloads.all { it == PAYLOAD_ENABLED }) {
+            holder.enabledSwitch.isChecked = getItem(position).isEnabled
+        } else {
+            onBindViewHolder(holder, position)
+        }
     }
+    
+    override fun getItemId(position: Int): Long = getItem(position).id
 }
-
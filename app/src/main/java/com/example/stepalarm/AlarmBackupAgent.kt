@@ -0,0 +1,198 @@
+package com.example.stepalarm
+
+import android.app.backup.BackupAgent
+import android.app.backup.BackupDataInput
+import android.app.backup.BackupDataOutput
+import android.os.ParcelFileDescriptor
+import android.util.Log
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.zip.CRC32
+
+/**
+ * Key/value backup with one record per alarm, keyed by alarm id and encoded with
+ * AlarmCodec. The state file remembers a checksum of every record that was sent, so
+ * a backup pass only writes the alarms that changed and deletes the ones that are
+ * gone. Restore merges into whatever alarms the device already has.
+ *
+ * Declaring an agent turns off Auto Backup, so the scheduler settings travel here too
+ * as one small record. The rest of the scheduler preferences describe what this
+ * device has armed and are not backed up.
+ */
+class AlarmBackupAgent : BackupAgent() {
+    companion object {
+        private const val TAG = "AlarmBackupAgent"
+        private const val KEY_PREFIX = "alarm_"
+        private const val KEY_SETTINGS = "settings"
+        private const val STATE_VERSION = 1
+    }
+    
+    override fun onBackup(oldState: ParcelFileDescriptor?, data: BackupDataOutput, newState: ParcelFileDescriptor) {
+        val sent = readState(oldState)
+        val table = AlarmDatabase(this).getAlarmTable()
+        val current = LinkedHashMap<Long, Long>(table.size)
+        var written = 0
+        
+        for (row in 0 until table.size) {
+            val alarm = table.getAlarm(row)
+            val record = encode(alarm)
+            val checksum = checksum(record)
+            current[alarm.id] = checksum
+            if (sent[alarm.id] != checksum) {
+                val key = KEY_PREFIX + alarm.id
+                data.writeEntityHeader(key, record.size)
+                data.writeEntityData(record, record.size)
+                written++
+            }
+        }
+        var deleted = 0
+        for (id in sent.keys) {
+            if (!current.containsKey(id)) {
+                // A negative size removes the key from the backup data set
+                data.writeEntityHeader(KEY_PREFIX + id, -1)
+                deleted++
+            }
+        }
+        
+        // Two fields, so the settings are sent on every pass rather than tracked in the state
+        val settings = encodeSettings()
+        data.writeEntityHeader(KEY_SETTINGS, settings.size)
+        data.writeEntityData(settings, settings.size)
+        
+        writeState(newState, current)
+        Log.i(TAG, "Backup pass: $written alarms written, $deleted deleted, ${table.size} total")
+    }
+    
+    override fun onRestore(data: BackupDataInput, appVersionCode: Int, newState: ParcelFileDescriptor) {
+        val restored = LinkedHashMap<Long, Alarm>()
+        val checksums = LinkedHashMap<Long, Long>()
+        while (data.readNextHeader()) {
+            val key = data.key
+            val size = data.dataSize
+            if (key == KEY_SETTINGS && size > 0) {
+                val record = ByteArray(size)
+                data.readEntityData(record, 0, size)
+                restoreSettings(record)
+                continue
+            }
+            val id = key.removePrefix(KEY_PREFIX).toLongOrNull()
+            if (!key.startsWith(KEY_PREFIX) || id == null || size <= 0) {
+                data.skipEntityData()
+                continue
+            }
+            val record = ByteArray(size)
+            data.readEntityData(record, 0, size)
+            try {
+                restored[id] = AlarmCodec.decode(ByteBuffer.wrap(record))
+                checksums[id] = checksum(record)
+            } catch (e: RuntimeException) {
+                Log.w(TAG, "Skipping unreadable backup record $key", e)
+            }
+        }
+        
+        // Alarms get fresh ids on this device; one that already rings at the same time on the same days is kept as is
+        val alarmDatabase = AlarmDatabase(this)
+        val existing = HashSet<Long>()
+        alarmDatabase.getAllAlarms().forEach { existing.add(mergeKey(it)) }
+        val result = alarmDatabase.edit {
+            restored.values.forEach { alarm ->
+                if (existing.add(mergeKey(alarm))) {
+                    insert(alarm)
+                }
+            }
+        }
+        // StepAlarmApplication's observer already armed the inserts; restore may run without it
+        if (applicationContext !is StepAlarmApplication) {
+            AlarmScheduler.applyChanges(this, result.changes)
+        }
+        
+        // The state describes the backup data set, so the next pass replaces the restored keys with the new ids
+        writeState(newState, checksums)
+        Log.i(TAG, "Restore: ${restored.size} alarms in backup, ${result.changes.size} added")
+    }
+    
+    private fun encodeSettings(): ByteArray {
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use { output ->
+            output.writeBoolean(AlarmScheduler.isNextAlarmOnly(this))
+            output.writeUTF(AlarmScheduler.getDeliveryTier(this).name)
+        }
+        return bytes.toByteArray()
+    }
+    
+    // Goes through the setters, so whatever the restored mode and tier change is re-armed
+    private fun restoreSettings(record: ByteArray) {
+        try {
+            DataInputStream(ByteArrayInputStream(record)).use { input ->
+                val nextAlarmOnly = input.readBoolean()
+                val tier = AlarmScheduler.DeliveryTier.valueOf(input.readUTF())
+                AlarmScheduler.setNextAlarmOnly(this, nextAlarmOnly)
+                AlarmScheduler.setDeliveryTier(this, tier)
+            }
+        } catch (e: IOException) {
+            Log.w(TAG, "Skipping unreadable settings record", e)
+        } catch (e: IllegalArgumentException) {
+            Log.w(TAG, "Skipping settings record with an unknown delivery tier", e)
+        }
+    }
+    
+    private fun mergeKey(alarm: Alarm): Long {
+        val flags = AlarmTable.packFlags(alarm.isRepeating, false, alarm.getRepeatDayMask())
+        val rule = (alarm.recurrence?.hashCode() ?: 0).toLong() and 0x7FFFFF
+        return (alarm.hour * 60 + alarm.minute).toLong() shl 32 or (rule shl 9) or flags.toLong()
+    }
+    
+    private fun encode(alarm: Alarm): ByteArray {
+        val buffer = ByteBuffer.allocate(AlarmCodec.maxRecordSize(alarm))
+        AlarmCodec.encode(alarm, buffer)
+        return buffer.array().copyOf(buffer.position())
+    }
+    
+    private fun checksum(record: ByteArray): Long {
+        val crc = CRC32()
+        crc.update(record)
+        return crc.value
+    }
+    
+    // The descriptors belong to the backup framework, so the streams are not closed here
+    private fun readState(state: ParcelFileDescriptor?): Map<Long, Long> {
+        val sent = HashMap<Long, Long>()
+        if (state == null) {
+            return sent
+        }
+        try {
+            val input = DataInputStream(FileInputStream(state.fileDescriptor))
+            if (input.readInt() != STATE_VERSION) {
+                return sent
+            }
+            repeat(input.readInt()) {
+                sent[input.readLong()] = input.readLong()
+            }
+        } catch (e: IOException) {
+            // Missing or partial state just means everything is sent again
+            sent.clear()
+        }
+        return sent
+    }
+    
+    private fun writeState(state: ParcelFileDescriptor, checksums: Map<Long, Long>) {
+        try {
+            val output = DataOutputStream(FileOutputStream(state.fileDescriptor))
+            output.writeInt(STATE_VERSION)
+            output.writeInt(checksums.size)
+            checksums.forEach { (id, checksum) ->
+                output.writeLong(id)
+                output.writeLong(checksum)
+            }
+            output.flush()
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to write backup state", e)
+        }
+    }
+}
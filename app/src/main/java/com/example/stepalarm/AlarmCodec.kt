@@ -0,0 +1,186 @@
+package com.example.stepalarm
+
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Hand-written binary format for alarms, used for the snapshot file that a cold
+ * process reads instead of opening the SQLite store.
+ *
+ * File: magic (4) | version (1) | count (4) | records
+ * Record: id as unsigned varint | 3 bytes holding
+ *   hour (5 bits) | minute (6) | repeating (1) | enabled (1) | repeat day mask (7) | has rule (1)
+ *   then, if the rule bit is set (version 2), the RecurrenceRule text as varint length + UTF-8
+ */
+object AlarmCodec {
+    private const val MAGIC = 0x53414C4D // "SALM"
+    const val VERSION = 2
+    private const val HEADER_SIZE = 9
+    private const val MAX_RECORD_SIZE = 13 // 10 byte varint + 3 packed bytes, without a rule
+    private const val MAX_LENGTH_SIZE = 5
+    
+    private const val FLAG_REPEATING = 1 shl 11
+    private const val FLAG_ENABLED = 1 shl 12
+    private const val DAY_MASK_SHIFT = 13
+    private const val FLAG_RECURRENCE = 1 shl 20
+    
+    fun encodeAll(table: AlarmTable): ByteBuffer {
+        var ruleBytes: Array<ByteArray?>? = null
+        var ruleSize = 0
+        if (table.hasRecurrences) {
+            ruleBytes = Array(table.size) { row -> table.getRecurrence(row)?.encode()?.toByteArray(Charsets.UTF_8) }
+            ruleBytes.forEach { bytes -> if (bytes != null) ruleSize += MAX_LENGTH_SIZE + bytes.size }
+        }
+        val buffer = ByteBuffer.allocate(HEADER_SIZE + table.size * MAX_RECORD_SIZE + ruleSize)
+        buffer.putInt(MAGIC)
+        buffer.put(VERSION.toByte())
+        buffer.putInt(table.size)
+        for (row in 0 until table.size) {
+            writeRecord(buffer, table.getId(row), pack(table.getHour(row), table.getMinute(row),
+                table.isRepeating(row), table.isEnabled(row), table.getRepeatDayMask(row)), ruleBytes?.get(row))
+        }
+        buffer.flip()
+        return buffer
+    }
+    
+    // Upper bound of the bytes encode() writes for this alarm
+    fun maxRecordSize(alarm: Alarm): Int {
+        val rule = alarm.recurrence ?: return MAX_RECORD_SIZE
+        return MAX_RECORD_SIZE + MAX_LENGTH_SIZE + rule.encode().toByteArray(Charsets.UTF_8).size
+    }
+    
+    // Throws IllegalArgumentException if the data is not in this format or version
+    fun decodeAll(buffer: ByteBuffer): AlarmTable {
+        require(buffer.remaining() >= HEADER_SIZE) { "Truncated alarm file" }
+        require(buffer.getInt() == MAGIC) { "Not an alarm file" }
+        val version = buffer.get().toInt()
+        require(version in 1..VERSION) { "Unsupported alarm file version $version" }
+        val count = buffer.getInt()
+        require(count >= 0) { "Corrupt alarm count $count" }
+        val builder = AlarmTable.Builder(count)
+        repeat(count) {
+            val id = readVarint(buffer)
+            val packed = readPacked(buffer)
+            builder.add(id, (packed and 0x1F) * 60 + ((packed ushr 5) and 0x3F),
+                AlarmTable.packFlags(packed and FLAG_REPEATING != 0, packed and FLAG_ENABLED != 0,
+                    (packed ushr DAY_MASK_SHIFT) and 0x7F),
+                readRecurrence(buffer, packed))
+        }
+        return builder.build()
+    }
+    
+    // Single record without the file header; see maxRecordSize() for the room it needs
+    fun encode(alarm: Alarm, buffer: ByteBuffer) {
+        writeRecord(buffer, alarm.id, pack(alarm.hour, alarm.minute, alarm.isRepeating, alarm.isEnabled,
+            alarm.getRepeatDayMask()), alarm.recurrence?.encode()?.toByteArray(Charsets.UTF_8))
+    }
+    
+    fun decode(buffer: ByteBuffer): Alarm {
+        val id = readVarint(buffer)
+        val packed = readPacked(buffer)
+        return Alarm(
+            id = id,
+            hour = packed and 0x1F,
+            minute = (packed ushr 5) and 0x3F,
+            isRepeating = packed and FLAG_REPEATING != 0,
+            repeatDays = Alarm.daysFromMask((packed ushr DAY_MASK_SHIFT) and 0x7F),
+            isEnabled = packed and FLAG_ENABLED != 0,
+            recurrence = readRecurrence(buffer, packed)
+        )
+    }
+    
+    private fun pack(hour: Int, minute: Int, isRepeating: Boolean, isEnabled: Boolean, repeatDayMask: Int): Int {
+        var packed = hour or (minute shl 5) or (repeatDayMask shl DAY_MASK_SHIFT)
+        if (isRepeating) packed = packed or FLAG_REPEATING
+        if (isEnabled) packed = packed or FLAG_ENABLED
+        return packed
+    }
+    
+    private fun writeRecord(buffer: ByteBuffer, id: Long, packed: Int, rule: ByteArray?) {
+        writeVarint(buffer, id)
+        val flagged = if (rule != null) packed or FLAG_RECURRENCE else packed
+        buffer.put((flagged ushr 16).toByte())
+        buffer.put((flagged ushr 8).toByte())
+        buffer.put(flagged.toByte())
+        if (rule != null) {
+            writeVarint(buffer, rule.size.toLong())
+            buffer.put(rule)
+        }
+    }
+    
+    private fun writeVarint(buffer: ByteBuffer, value: Long) {
+        var remaining = value
+        while (remaining and 0x7FL.inv() != 0L) {
+            buffer.put(((remaining and 0x7F) or 0x80).toByte())
+            remaining = remaining ushr 7
+        }
+        buffer.put(remaining.toByte())
+    }
+    
+    // Throws IllegalArgumentException for a rule that doesn't parse, like the rest of the decoder
+    private fun readRecurrence(buffer: ByteBuffer, packed: Int): RecurrenceRule? {
+        if (packed and FLAG_RECURRENCE == 0) {
+            return null
+        }
+        val length = readVarint(buffer)
+        require(length in 0..buffer.remaining()) { "Corrupt recurrence length $length" }
+        val bytes = ByteArray(length.toInt())
+        buffer.get(bytes)
+        return RecurrenceRule.parse(String(bytes, Charsets.UTF_8))
+    }
+    
+    private fun readVarint(buffer: ByteBuffer): Long {
+        var id = 0L
+        var shift = 0
+        while (true) {
+            require(shift < 64) { "Malformed varint" }
+            val b = buffer.get().toInt()
+            id = id or ((b and 0x7F).toLong() shl shift)
+            if (b and 0x80 == 0) return id
+            shift += 7
+        }
+    }
+    
+    private fun readPacked(buffer: ByteBuffer): Int {
+        return ((buffer.get().toInt() and 0xFF) shl 16) or
+            ((buffer.get().toInt() and 0xFF) shl 8) or
+            (buffer.get().toInt() and 0xFF)
+    }
+    
+    // Replaces the file atomically so a reader never sees a half-written snapshot
+    @Throws(IOException::class)
+    fun writeFile(file: File, table: AlarmTable) {
+        val buffer = encodeAll(table)
+        val tmp = File(file.path + ".tmp")
+        FileOutputStream(tmp).use { out ->
+            out.channel.write(buffer)
+            out.fd.sync()
+        }
+        if (!tmp.renameTo(file)) {
+            throw IOException("Failed to replace ${file.name}")
+        }
+    }
+    
+    // Decodes straight from a read-only mapping of the file; null if it is missing or unreadable
+    fun readFile(file: File): AlarmTable? {
+        if (!file.exists()) {
+            return null
+        }
+        return try {
+            RandomAccessFile(file, "r").use { raf ->
+                val mapped = raf.channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+                decodeAll(mapped)
+            }
+        } catch (e: IOException) {
+            null
+        } catch (e: IllegalArgumentException) {
+            null
+        } catch (e: java.nio.BufferUnderflowException) {
+            null
+        }
+    }
+}
@@ -1,59 +1,367 @@
 package com.example.stepalarm
 
+import android.content.ContentValues
 import android.content.Context
-import android.content.SharedPreferences
-import com.google.gson.Gson
-import com.google.gson.reflect.TypeToken
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteException
+import android.util.Log
+import com.example.stepalarm.AlarmOpenHelper.Companion.COLUMN_HOUR
+import com.example.stepalarm.AlarmOpenHelper.Companion.COLUMN_ID
+import com.example.stepalarm.AlarmOpenHelper.Companion.COLUMN_IS_ENABLED
+import com.example.stepalarm.AlarmOpenHelper.Companion.COLUMN_IS_REPEATING
+import com.example.stepalarm.AlarmOpenHelper.Companion.COLUMN_MINUTE
+import com.example.stepalarm.AlarmOpenHelper.Companion.COLUMN_NEXT_FIRE_TIME
+import com.example.stepalarm.AlarmOpenHelper.Companion.COLUMN_RECURRENCE
+import com.example.stepalarm.AlarmOpenHelper.Companion.COLUMN_REPEAT_DAYS
+import com.example.stepalarm.AlarmOpenHelper.Companion.TABLE_ALARMS
+import java.io.IOException
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 
+/**
+ * All instances share one process-wide snapshot of the alarms, held as an immutable
+ * AlarmTable. Reads are a volatile read plus a binary search; mutations build a new
+ * table, publish it and, on a background thread, rewrite the binary snapshot and then
+ * the changed rows in SQLite.
+ *
+ * The binary snapshot lives in device-protected storage so the alarms can be read
+ * before the user unlocks after a reboot. SQLite stays credential-encrypted; changes
+ * made while locked only reach the snapshot, and SQLite is rewritten from it after
+ * the unlock.
+ */
 class AlarmDatabase(private val context: Context) {
-    private val prefs: SharedPreferences = context.getSharedPreferences("alarms_prefs", Context.MODE_PRIVATE)
-    private val gson = Gson()
-    private val key = "alarms_list"
+    private val helper = AlarmOpenHelper.getInstance(context)
+    private val store = snapshotStore(context)
     
-    fun saveAlarm(alarm: Alarm): Long {
-        val alarms = getAllAlarms().toMutableList()
-        val existingIndex = alarms.indexOfFirst { it.id == alarm.id && alarm.id != 0L }
+    // complete is false for the empty stand-in used while locked without a snapshot file
+    private class Snapshot(
+        val table: AlarmTable,
+        val fireIndex: WeeklyFireIndex,
+        val maxId: Long,
+        val complete: Boolean = true
+    )
+    
+    companion object {
+        private const val TAG = "AlarmDatabase"
+        private const val SNAPSHOT_FILE_NAME = "alarms.bin"
+        private const val RESYNC_MARKER_NAME = "alarms.resync"
+        
+        @Volatile
+        private var snapshot: Snapshot? = null
+        @Volatile
+        private var snapshotStore: SnapshotStore? = null
+        private val writeLock = Any()
+        private val persistExecutor: ExecutorService = Executors.newSingleThreadExecutor { runnable ->
+            Thread(runnable, "AlarmDatabase")
+        }
+        
+        private fun snapshotStore(context: Context): SnapshotStore {
+            return snapshotStore ?: synchronized(writeLock) {
+                snapshotStore ?: SnapshotStore(
+                    DeviceStorage.file(context, SNAPSHOT_FILE_NAME),
+                    DeviceStorage.file(context, RESYNC_MARKER_NAME)
+                ).also { snapshotStore = it }
+            }
+        }
+        
+        // Every committed batch is published as one AlarmEvents.AlarmsChanged on the EventBus
+        @JvmStatic
+        fun observe(mode: EventBus.ThreadMode, observer: Observer): EventBus.Subscription {
+            return EventBus.getDefault().subscribe(AlarmEvents.AlarmsChanged::class.java, mode) { event ->
+                observer.onAlarmsChanged(event.changes)
+            }
+        }
+    }
+    
+    enum class ChangeType { INSERTED, UPDATED, DELETED }
+    
+    // One change made by a batch; before is null for inserts and after is null for deletes
+    class Change(val before: Alarm?, val after: Alarm?) {
+        val type: ChangeType
+            get() = when {
+                before == null -> ChangeType.INSERTED
+                after == null -> ChangeType.DELETED
+                else -> ChangeType.UPDATED
+            }
+        
+        val alarmId: Long
+            get() = (after ?: before)!!.id
+    }
+    
+    fun interface Observer {
+        fun onAlarmsChanged(changes: List<Change>)
+    }
+    
+    class BatchResult(val changes: List<Change>) {
+        // Ids of the affected alarms in the order the operations were issued
+        val ids: List<Long>
+            get() = changes.map { it.alarmId }
+    }
+    
+    // Mutations collected by edit(); they all apply to the same snapshot
+    class Batch internal constructor(
+        private val table: AlarmTable,
+        internal var maxId: Long
+    ) {
+        internal val changes = ArrayList<Change>()
+        internal val upserts = LinkedHashMap<Long, Alarm>()
+        internal val deletedIds = HashSet<Long>()
+        
+        fun get(alarmId: Long): Alarm? {
+            if (deletedIds.contains(alarmId)) {
+                return null
+            }
+            return upserts[alarmId] ?: table.getAlarmById(alarmId)
+        }
+        
+        fun insert(alarm: Alarm): Long {
+            val inserted = alarm.copy(id = ++maxId)
+            upserts[inserted.id] = inserted
+            changes.add(Change(null, inserted))
+            return inserted.id
+        }
         
-        val savedAlarm = if (existingIndex >= 0) {
-            alarms[existingIndex] = alarm
-            alarm
-        } else {
-            val newId = if (alarms.isEmpty()) 1L else (alarms.maxOfOrNull { it.id } ?: 0L) + 1
-            val newAlarm = alarm.copy(id = newId)
-            alarms.add(newAlarm)
-            newAlarm
+        fun update(alarm: Alarm): Boolean {
+            val before = get(alarm.id) ?: return false
+            upserts[alarm.id] = alarm
+            changes.add(Change(before, alarm))
+            return true
         }
         
-        saveAlarms(alarms)
-        return savedAlarm.id
+        // Updates the alarm if its id exists, otherwise inserts it with a new id
+        fun save(alarm: Alarm): Long {
+            return if (alarm.id != 0L && update(alarm)) alarm.id else insert(alarm)
+        }
+        
+        fun delete(alarmId: Long): Boolean {
+            val before = get(alarmId) ?: return false
+            upserts.remove(alarmId)
+            deletedIds.add(alarmId)
+            changes.add(Change(before, null))
+            return true
+        }
+    }
+    
+    // Applies every mutation in the block to one snapshot and persists them in a single transaction
+    fun edit(block: Batch.() -> Unit): BatchResult {
+        val result = synchronized(writeLock) {
+            val current = loadSnapshot()
+            val batch = Batch(current.table, current.maxId)
+            batch.block()
+            if (batch.changes.isEmpty()) {
+                return BatchResult(emptyList())
+            }
+            snapshot = Snapshot(
+                current.table.withChanges(batch.upserts, batch.deletedIds),
+                current.fireIndex.withChanges(batch.changes),
+                batch.maxId,
+                current.complete
+            )
+            BatchResult(batch.changes)
+        }
+        // Posted outside the lock, so batches from different threads may arrive out of order; observers that
+        // act on the alarms' state read it back from the snapshot
+        EventBus.getDefault().post(AlarmEvents.AlarmsChanged(result.changes))
+        
+        persist { db ->
+            db.beginTransaction()
+            try {
+                result.changes.forEach { change ->
+                    val after = change.after
+                    if (after != null) {
+                        db.insertWithOnConflict(TABLE_ALARMS, null,
+                            AlarmOpenHelper.toContentValues(after, includeId = true),
+                            SQLiteDatabase.CONFLICT_REPLACE)
+                    } else {
+                        db.delete(TABLE_ALARMS, "$COLUMN_ID = ?", arrayOf(change.before!!.id.toString()))
+                    }
+                }
+                db.setTransactionSuccessful()
+            } finally {
+                db.endTransaction()
+            }
+        }
+        return result
+    }
+    
+    fun saveAlarm(alarm: Alarm): Long {
+        return edit { save(alarm) }.ids.first()
     }
     
     fun deleteAlarm(alarmId: Long) {
-        val alarms = getAllAlarms().toMutableList()
-        alarms.removeAll { it.id == alarmId }
-        saveAlarms(alarms)
+        edit { delete(alarmId) }
     }
     
+    // Sorted by time of day; rows are materialised as they are read
     fun getAllAlarms(): List<Alarm> {
-        val json = prefs.getString(key, null) ?: return emptyList()
-        val type = object : TypeToken<List<Alarm>>() {}.type
-        return gson.fromJson(json, type) ?: emptyList()
+        return loadSnapshot().table.asList()
+    }
+    
+    fun getAlarmTable(): AlarmTable {
+        return loadSnapshot().table
+    }
+    
+    fun getFireIndex(): WeeklyFireIndex {
+        return loadSnapshot().fireIndex
     }
     
     fun getAlarm(alarmId: Long): Alarm? {
-        return getAllAlarms().find { it.id == alarmId }
+        return loadSnapshot().table.getAlarmById(alarmId)
     }
     
-    private fun saveAlarms(alarms: List<Alarm>) {
-        val json = gson.toJson(alarms)
-        prefs.edit().putString(key, json).apply()
+    /**
+     * Earliest enabled alarm still to fire after the given time, served from the
+     * next_fire_time index. The query queues behind the pending writes, so it sees every
+     * edit made before the call; don't call it on the main thread.
+     */
+    fun getNextAlarm(afterMillis: Long = System.currentTimeMillis()): Alarm? {
+        val alarmId = try {
+            persistExecutor.submit(Callable {
+                helper.readableDatabase.query(
+                    TABLE_ALARMS, arrayOf(COLUMN_ID),
+                    "$COLUMN_IS_ENABLED = 1 AND $COLUMN_NEXT_FIRE_TIME > ?", arrayOf(afterMillis.toString()),
+                    null, null, COLUMN_NEXT_FIRE_TIME, "1"
+                ).use { cursor -> if (cursor.moveToFirst()) cursor.getLong(0) else -1L }
+            }).get()
+        } catch (e: ExecutionException) {
+            Log.e(TAG, "Failed to query the next alarm", e)
+            -1L
+        }
+        return if (alarmId < 0) null else getAlarm(alarmId)
+    }
+    
+    // Repeating alarms move on after they fire; keeps their stored next fire times in step in one transaction
+    fun refreshNextFireTimes(alarms: Collection<Alarm>) {
+        if (alarms.isEmpty()) {
+            return
+        }
+        val fireTimes = alarms.map { it.id to it.getNextAlarmTime() }
+        persist { db ->
+            db.beginTransaction()
+            try {
+                fireTimes.forEach { (alarmId, fireTime) ->
+                    val values = ContentValues().apply { put(COLUMN_NEXT_FIRE_TIME, fireTime) }
+                    db.update(TABLE_ALARMS, values, "$COLUMN_ID = ?", arrayOf(alarmId.toString()))
+                }
+                db.setTransactionSuccessful()
+            } finally {
+                db.endTransaction()
+            }
+        }
     }
     
     fun toggleAlarm(alarmId: Long): Alarm? {
-        val alarm = getAlarm(alarmId) ?: return null
-        val updatedAlarm = alarm.copy(isEnabled = !alarm.isEnabled)
-        saveAlarm(updatedAlarm)
-        return updatedAlarm
+        return edit {
+            get(alarmId)?.let { update(it.copy(isEnabled = !it.isEnabled)) }
+        }.changes.firstOrNull()?.after
+    }
+    
+    private fun loadSnapshot(): Snapshot {
+        snapshot?.let { if (it.complete) return it }
+        synchronized(writeLock) {
+            snapshot?.let { if (it.complete || !DeviceStorage.isUserUnlocked(context)) return it }
+            // A cold process (e.g. started by AlarmReceiver) decodes the binary snapshot and skips SQLite
+            val cached = store.read()
+            if (cached == null && !DeviceStorage.isUserUnlocked(context)) {
+                // Nothing readable until the unlock; loaded again from SQLite after it
+                Log.w(TAG, "No alarm snapshot in device-protected storage while locked")
+                val empty = AlarmTable.Builder(0).build()
+                return Snapshot(empty, WeeklyFireIndex.of(empty), 0, complete = false).also { snapshot = it }
+            }
+            val table = cached ?: readTable()
+            
+            val loaded = Snapshot(table, WeeklyFireIndex.of(table), table.maxId())
+            snapshot = loaded
+            // Writes the snapshot file, or brings SQLite up to a file that a previous process left ahead
+            if (cached == null || store.needsResync()) {
+                persist { }
+            }
+            return loaded
+        }
+    }
+    
+    // Rewrites the binary snapshot if the in-memory table moved on, then applies the row change to SQLite
+    private fun persist(write: (SQLiteDatabase) -> Unit) {
+        persistExecutor.execute {
+            val current = snapshot ?: return@execute
+            try {
+                if (!current.complete) {
+                    // Nothing to write over the file with yet; SQLite is rewritten once the real table loads
+                    store.markResync()
+                    return@execute
+                }
+                val unlocked = DeviceStorage.isUserUnlocked(context)
+                store.commit(current.table, if (!unlocked) null else { resync ->
+                    if (resync) {
+                        // The snapshot already holds this change along with the ones SQLite missed
+                        resync(helper.writableDatabase, current.table)
+                    } else {
+                        write(helper.writableDatabase)
+                    }
+                })
+            } catch (e: IOException) {
+                Log.e(TAG, "Failed to write alarm snapshot file", e)
+            } catch (e: SQLiteException) {
+                Log.e(TAG, "Failed to persist alarm change", e)
+            }
+        }
+    }
+    
+    // Replaces every row with the in-memory table after changes that SQLite missed
+    private fun resync(db: SQLiteDatabase, table: AlarmTable) {
+        db.beginTransaction()
+        try {
+            db.delete(TABLE_ALARMS, null, null)
+            table.asList().forEach { alarm ->
+                db.insert(TABLE_ALARMS, null, AlarmOpenHelper.toContentValues(alarm, includeId = true))
+            }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+        Log.i(TAG, "Rewrote ${table.size} alarms to SQLite from the snapshot")
+    }
+    
+    private fun readRecurrence(text: String?): RecurrenceRule? {
+        if (text == null) {
+            return null
+        }
+        return try {
+            RecurrenceRule.parse(text)
+        } catch (e: IllegalArgumentException) {
+            Log.e(TAG, "Ignoring unreadable recurrence rule: $text", e)
+            null
+        }
+    }
+    
+    private fun readTable(): AlarmTable {
+        helper.readableDatabase.query(
+            TABLE_ALARMS, AlarmOpenHelper.ALL_COLUMNS, null, null, null, null, null
+        ).use { cursor ->
+            val idColumn = cursor.getColumnIndexOrThrow(COLUMN_ID)
+            val hourColumn = cursor.getColumnIndexOrThrow(COLUMN_HOUR)
+            val minuteColumn = cursor.getColumnIndexOrThrow(COLUMN_MINUTE)
+            val repeatingColumn = cursor.getColumnIndexOrThrow(COLUMN_IS_REPEATING)
+            val daysColumn = cursor.getColumnIndexOrThrow(COLUMN_REPEAT_DAYS)
+            val enabledColumn = cursor.getColumnIndexOrThrow(COLUMN_IS_ENABLED)
+            val recurrenceColumn = cursor.getColumnIndexOrThrow(COLUMN_RECURRENCE)
+            
+            val builder = AlarmTable.Builder(cursor.count)
+            while (cursor.moveToNext()) {
+                builder.add(
+                    cursor.getLong(idColumn),
+                    cursor.getInt(hourColumn) * 60 + cursor.getInt(minuteColumn),
+                    AlarmTable.packFlags(
+                        cursor.getInt(repeatingColumn) != 0,
+                        cursor.getInt(enabledColumn) != 0,
+                        cursor.getInt(daysColumn)
+                    ),
+                    readRecurrence(cursor.getString(recurrenceColumn))
+                )
+            }
+            return builder.build()
+        }
     }
 }
-
@@ -0,0 +1,42 @@
+package com.example.stepalarm;
+
+import java.util.List;
+
+// Typed events posted on the EventBus between alarm components
+public final class AlarmEvents {
+    public static final StopAlarm STOP_ALARM = new StopAlarm();
+    public static final StepsCompleted STEPS_COMPLETED = new StepsCompleted();
+
+    private AlarmEvents() {
+    }
+
+    // AlarmActivity -> AlarmReceiver: silence sound and vibration
+    public static final class StopAlarm {
+        private StopAlarm() {
+        }
+    }
+
+    // StepCounterService -> AlarmActivity: the required number of steps was reached
+    public static final class StepsCompleted {
+        private StepsCompleted() {
+        }
+    }
+
+    // AlarmDatabase -> observers: the changes made by one committed batch
+    public static final class AlarmsChanged {
+        public final List<AlarmDatabase.Change> changes;
+
+        public AlarmsChanged(List<AlarmDatabase.Change> changes) {
+            this.changes = changes;
+        }
+    }
+
+    // StepCounterService -> AlarmOverlayService / AlarmActivity: current step count
+    public static final class StepCountChanged {
+        public final long steps;
+
+        public StepCountChanged(long steps) {
+            this.steps = steps;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.stepalarm
+
+import android.content.ContentValues
+import android.content.Context
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+import android.util.Log
+import com.google.gson.Gson
+import com.google.gson.JsonParseException
+import com.google.gson.reflect.TypeToken
+
+class AlarmOpenHelper private constructor(private val context: Context) :
+    SQLiteOpenHelper(context, DATABASE_NAME, null, DATABASE_VERSION) {
+
+    companion object {
+        private const val TAG = "AlarmOpenHelper"
+        private const val DATABASE_NAME = "alarms.db"
+        private const val DATABASE_VERSION = 2
+        
+        const val TABLE_ALARMS = "alarms"
+        const val COLUMN_ID = "id"
+        const val COLUMN_HOUR = "hour"
+        const val COLUMN_MINUTE = "minute"
+        const val COLUMN_IS_REPEATING = "is_repeating"
+        const val COLUMN_REPEAT_DAYS = "repeat_days" // Bit (day - 1) set for each Calendar.DAY_OF_WEEK
+        const val COLUMN_IS_ENABLED = "is_enabled"
+        const val COLUMN_NEXT_FIRE_TIME = "next_fire_time"
+        const val COLUMN_RECURRENCE = "recurrence" // RecurrenceRule.encode(), null for weekly repeat days
+        
+        val ALL_COLUMNS = arrayOf(
+            COLUMN_ID, COLUMN_HOUR, COLUMN_MINUTE, COLUMN_IS_REPEATING,
+            COLUMN_REPEAT_DAYS, COLUMN_IS_ENABLED, COLUMN_RECURRENCE
+        )
+        
+        // The SharedPreferences blob used before alarms moved to SQLite
+        private const val LEGACY_PREFS_NAME = "alarms_prefs"
+        private const val LEGACY_KEY = "alarms_list"
+        
+        @Volatile
+        private var instance: AlarmOpenHelper? = null
+        
+        @JvmStatic
+        fun getInstance(context: Context): AlarmOpenHelper {
+            return instance ?: synchronized(this) {
+                instance ?: AlarmOpenHelper(context.applicationContext).also { instance = it }
+            }
+        }
+        
+        fun toContentValues(alarm: Alarm, includeId: Boolean): ContentValues {
+            return ContentValues().apply {
+                if (includeId) {
+                    put(COLUMN_ID, alarm.id)
+                }
+                put(COLUMN_HOUR, alarm.hour)
+                put(COLUMN_MINUTE, alarm.minute)
+                put(COLUMN_IS_REPEATING, if (alarm.isRepeating) 1 else 0)
+                put(COLUMN_REPEAT_DAYS, alarm.getRepeatDayMask())
+                put(COLUMN_IS_ENABLED, if (alarm.isEnabled) 1 else 0)
+                put(COLUMN_NEXT_FIRE_TIME, alarm.getNextAlarmTime())
+                put(COLUMN_RECURRENCE, alarm.recurrence?.encode())
+            }
+        }
+    }
+
+    override fun onCreate(db: SQLiteDatabase) {
+        db.execSQL(
+            "CREATE TABLE $TABLE_ALARMS (" +
+                "$COLUMN_ID INTEGER PRIMARY KEY, " +
+                "$COLUMN_HOUR INTEGER NOT NULL, " +
+                "$COLUMN_MINUTE INTEGER NOT NULL, " +
+                "$COLUMN_IS_REPEATING INTEGER NOT NULL, " +
+                "$COLUMN_REPEAT_DAYS INTEGER NOT NULL, " +
+                "$COLUMN_IS_ENABLED INTEGER NOT NULL, " +
+                "$COLUMN_NEXT_FIRE_TIME INTEGER NOT NULL, " +
+                "$COLUMN_RECURRENCE TEXT)"
+        )
+        db.execSQL("CREATE INDEX idx_alarms_next_fire_time ON $TABLE_ALARMS($COLUMN_NEXT_FIRE_TIME)")
+        
+        migrateLegacyPrefs(db)
+    }
+
+    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+        if (oldVersion < 2) {
+            db.execSQL("ALTER TABLE $TABLE_ALARMS ADD COLUMN $COLUMN_RECURRENCE TEXT")
+        }
+    }
+
+    // One-time import of the old Gson blob; runs inside onCreate's transaction
+    private fun migrateLegacyPrefs(db: SQLiteDatabase) {
+        val prefs = context.getSharedPreferences(LEGACY_PREFS_NAME, Context.MODE_PRIVATE)
+        val json = prefs.getString(LEGACY_KEY, null) ?: return
+        
+        val alarms: List<Alarm> = try {
+            val type = object : TypeToken<List<Alarm>>() {}.type
+            Gson().fromJson(json, type) ?: emptyList()
+        } catch (e: JsonParseException) {
+            Log.e(TAG, "Failed to parse legacy alarms, dropping them", e)
+            emptyList()
+        }
+        
+        alarms.forEach { alarm ->
+            db.insertWithOnConflict(TABLE_ALARMS, null, toContentValues(alarm, includeId = true),
+                SQLiteDatabase.CONFLICT_REPLACE)
+        }
+        prefs.edit().remove(LEGACY_KEY).apply()
+        Log.i(TAG, "Migrated ${alarms.size} alarms from SharedPreferences")
+    }
+}
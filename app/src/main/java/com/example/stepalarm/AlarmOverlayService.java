@@ -16,6 +16,7 @@ public class AlarmOverlayService extends Service {
     private TextView stepCountText;
     private TextView remainingStepsText;
     private static final int REQUIRED_STEPS = 10;
+    private EventBus.Subscription stepCountSubscription;
 
     @Override
     public void onCreate() {
@@ -28,15 +29,13 @@ public class AlarmOverlayService extends Service {
             throw e;
         }
         createOverlayView();
+        stepCountSubscription = EventBus.getDefault().subscribe(
+            AlarmEvents.StepCountChanged.class, EventBus.ThreadMode.MAIN,
+            event -> updateStepCount((int) event.steps));
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        if (intent != null && intent.hasExtra("steps")) {
-            int steps = intent.getIntExtra("steps", 0);
-            LogFileWriter.logInfo(this, "AlarmOverlayService", "Updating step count: " + steps);
-            updateStepCount(steps);
-        }
         return START_STICKY;
     }
 
@@ -82,6 +81,9 @@ public class AlarmOverlayService extends Service {
     public void onDestroy() {
         LogFileWriter.logInfo(this, "AlarmOverlayService", "=== onDestroy() called ===");
         super.onDestroy();
+        if (stepCountSubscription != null) {
+            stepCountSubscription.unsubscribe();
+        }
         windowManager.removeView(overlayView);
         LogFileWriter.logInfo(this, "AlarmOverlayService", "Overlay view removed");
     }
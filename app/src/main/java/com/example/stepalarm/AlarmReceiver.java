@@ -1,5 +1,7 @@
 package com.example.stepalarm;
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -9,11 +11,15 @@ import android.media.MediaPlayer;
 import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.SystemClock;
 import android.os.VibrationEffect;
 import android.os.Vibrator;
 import android.util.Log;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class AlarmReceiver extends BroadcastReceiver {
     private static final String TAG = "AlarmReceiver";
@@ -21,9 +27,22 @@ public class AlarmReceiver extends BroadcastReceiver {
     private static Vibrator vibrator;
     private static boolean isAlarmActive = false;
     private static final long[] VIBRATION_PATTERN = {0, 1000, 1000}; // Vibrate for 1 second, pause for 1 second
+    public static final String ACTION_RESUME_SESSION = "com.example.stepalarm.RESUME_SESSION";
+    private static final int RECOVERY_REQUEST_CODE = -1;
+    private static final long RECOVERY_INTERVAL_MS = 60 * 1000;
 
     @Override
     public void onReceive(Context context, Intent intent) {
+        long receivedElapsed = SystemClock.elapsedRealtime();
+        Tracing.beginSection("AlarmReceiver.onReceive");
+        try {
+            handleReceive(context, intent, receivedElapsed);
+        } finally {
+            Tracing.endSection();
+        }
+    }
+
+    private void handleReceive(Context context, Intent intent, long receivedElapsed) {
         LogFileWriter.logInfo(context, TAG, "=== AlarmReceiver.onReceive() called ===");
         
         if (intent == null) {
@@ -35,19 +54,31 @@ public class AlarmReceiver extends BroadcastReceiver {
         String action = intent.getAction();
         LogFileWriter.logInfo(context, TAG, "Alarm received with action: " + action);
 
-        if (action != null && action.equals("STOP_ALARM")) {
-            LogFileWriter.logInfo(context, TAG, "STOP_ALARM action received");
-            stopAlarm(context);
+        if (ACTION_RESUME_SESSION.equals(action)) {
+            resumeActiveSession(context);
             return;
         }
 
+        // Read from the ledger before anything re-arms this request code
+        AlarmScheduler.Trigger trigger = AlarmScheduler.resolveTrigger(context, intent);
+        DeliveryDrift.record(context, trigger.getTier(), trigger.getScheduledTime(), System.currentTimeMillis());
+
+        // Scheduled rather than actual time, so a late delivery still finds the alarms it was armed for
+        long firedAt = trigger.getScheduledTime() > 0 ? trigger.getScheduledTime() : System.currentTimeMillis();
+
+        // In next-alarm-only mode this is the only armed system alarm, so arm the following one
+        // before anything below can return early
+        int nextAlarmSlot = trigger.getNextAlarmSlot();
+        if (nextAlarmSlot >= 0) {
+            AlarmScheduler.armNextAlarm(context, firedAt);
+        }
+
         if (isAlarmActive) {
             LogFileWriter.logWarning(context, TAG, "Alarm already active, ignoring new alarm");
             return;
         }
 
-        // Get alarm ID from intent
-        long alarmId = intent.getLongExtra("alarm_id", -1);
+        long alarmId = trigger.getAlarmId();
         LogFileWriter.logInfo(context, TAG, "Alarm ID from intent: " + alarmId);
         
         if (alarmId == -1) {
@@ -55,6 +86,10 @@ public class AlarmReceiver extends BroadcastReceiver {
             LogFileWriter.logError(context, TAG, "No alarm_id in intent", e);
             throw e;
         }
+        // Ignored unless this is the alarm of an active test run
+        AlarmTestRun.get(context).markDelivered(alarmId);
+        AlarmTimeline timeline = AlarmTimeline.get(context);
+        timeline.begin(alarmId, trigger.getScheduledTime(), receivedElapsed);
 
         // Check if alarm is enabled
         AlarmDatabase alarmDatabase = new AlarmDatabase(context);
@@ -62,28 +97,131 @@ public class AlarmReceiver extends BroadcastReceiver {
         LogFileWriter.logInfo(context, TAG, "Retrieved alarm from database: " + (alarm != null ? "found" : "not found"));
         
         if (alarm == null) {
-            RuntimeException e = new RuntimeException("Alarm not found in database for ID: " + alarmId);
-            LogFileWriter.logError(context, TAG, "Alarm not found in database for ID: " + alarmId, e);
-            throw e;
+            // E.g. a system alarm an older build left armed for an alarm that was deleted since
+            timeline.abandon();
+            LogFileWriter.logWarning(context, TAG, "Alarm not found in database for ID: " + alarmId + ", ignoring");
+            return;
         }
         
         if (!alarm.isEnabled()) {
+            timeline.abandon();
             LogFileWriter.logInfo(context, TAG, "Alarm is disabled, ignoring");
             return;
         }
+        timeline.mark(TimelineStage.DB_LOOKUP_DONE);
+
+        // Alarms set for the same minute share one ring; make that visible in the logs
+        int slot = nextAlarmSlot >= 0 ? nextAlarmSlot : WeeklyFireIndex.currentSlot(firedAt);
+        long[] sameMinute = alarmDatabase.getFireIndex().alarmsAt(slot);
+        if (sameMinute.length > 1) {
+            LogFileWriter.logWarning(context, TAG, sameMinute.length + " alarms fire this minute and share one ring: "
+                + Arrays.toString(sameMinute));
+        }
 
+        // The deletes and re-arms below reach AlarmManager as one batch
+        AlarmScheduler.batch(context, "trigger",
+            () -> settleAfterTrigger(context, alarmDatabase, alarm, nextAlarmSlot, sameMinute));
+
+        isAlarmActive = true;
+        AlarmSessionCheckpoint.get(context).start(alarmId);
+        startRinging(context);
+        armRecoveryWatchdog(context);
+    }
+
+    private static void settleAfterTrigger(Context context, AlarmDatabase alarmDatabase, Alarm alarm,
+                                           int nextAlarmSlot, long[] sameMinute) {
+        long alarmId = alarm.getId();
+        List<Alarm> moved = new ArrayList<>();
         // If it's a one-time alarm, delete it after triggering
-        if (!alarm.isRepeating()) {
+        if (!alarm.isRepeating() && alarm.getRecurrence() == null) {
             alarmDatabase.deleteAlarm(alarmId);
             LogFileWriter.logInfo(context, TAG, "Deleted one-time alarm");
         } else {
             // Reschedule repeating alarm for next occurrence
-            AlarmScheduler.scheduleAlarm(context, alarm);
+            AlarmScheduler.rescheduleAfterTrigger(context, alarm);
+            moved.add(alarm);
             LogFileWriter.logInfo(context, TAG, "Rescheduled repeating alarm");
         }
+        if (nextAlarmSlot >= 0) {
+            // The other alarms of this minute had no system alarm of their own; settle them here too
+            for (long otherId : sameMinute) {
+                Alarm other = otherId != alarmId ? alarmDatabase.getAlarm(otherId) : null;
+                if (other == null) {
+                    continue;
+                }
+                if (other.isRepeating() || other.getRecurrence() != null) {
+                    moved.add(other);
+                } else {
+                    alarmDatabase.deleteAlarm(otherId);
+                }
+            }
+        }
+        alarmDatabase.refreshNextFireTimes(moved);
+    }
 
+    // Restarts ringing for a session that was interrupted by process death
+    public static void resumeActiveSession(Context context) {
+        AlarmSessionCheckpoint checkpoint = AlarmSessionCheckpoint.get(context);
+        if (isAlarmActive) {
+            if (checkpoint.isActive()) {
+                armRecoveryWatchdog(context);
+            }
+            return;
+        }
+        AlarmSessionCheckpoint.Session session = checkpoint.load();
+        if (session != null) {
+            resumeSession(context, session);
+        }
+    }
+
+    // Restarts ringing for a session already read from the checkpoint; main thread only
+    public static void resumeSession(Context context, AlarmSessionCheckpoint.Session session) {
+        if (isAlarmActive) {
+            // A trigger or the recovery watchdog got there first
+            return;
+        }
+        LogFileWriter.logWarning(context, TAG, "Resuming alarm " + session.alarmId
+                + " interrupted at " + session.steps + " steps");
         isAlarmActive = true;
-        
+        AlarmSessionCheckpoint.get(context).resume(session);
+        startRinging(context);
+        armRecoveryWatchdog(context);
+    }
+
+    // Wakes us up periodically while ringing so a killed process is brought back within RECOVERY_INTERVAL_MS.
+    // Armed after the ringing starts, so a refused exact alarm can only cost the watchdog its precision.
+    private static void armRecoveryWatchdog(Context context) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (alarmManager == null) {
+            return;
+        }
+        long triggerAt = SystemClock.elapsedRealtime() + RECOVERY_INTERVAL_MS;
+        try {
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerAt,
+                getRecoveryIntent(context));
+        } catch (SecurityException e) {
+            // The exact alarm permission was revoked; an inexact wake-up is still a watchdog
+            Log.w(TAG, "Exact alarm refused, arming the recovery watchdog inexactly", e);
+            alarmManager.setAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerAt,
+                getRecoveryIntent(context));
+        }
+    }
+
+    private static void cancelRecoveryWatchdog(Context context) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (alarmManager != null) {
+            alarmManager.cancel(getRecoveryIntent(context));
+        }
+    }
+
+    private static PendingIntent getRecoveryIntent(Context context) {
+        Intent intent = new Intent(context, AlarmReceiver.class);
+        intent.setAction(ACTION_RESUME_SESSION);
+        return PendingIntent.getBroadcast(context, RECOVERY_REQUEST_CODE, intent,
+            PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    private static void startRinging(Context context) {
         // Get the system's default alarm sound
         Uri alarmSound = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM);
         if (alarmSound == null) {
@@ -116,14 +254,18 @@ public class AlarmReceiver extends BroadcastReceiver {
         }
         
         mediaPlayer.setLooping(true);
+        Tracing.beginSection("MediaPlayer.prepare");
         try {
             mediaPlayer.prepare();
         } catch (IOException e) {
             RuntimeException re = new RuntimeException("Failed to prepare MediaPlayer", e);
             LogFileWriter.logError(context, TAG, "Failed to prepare MediaPlayer", re);
             throw re;
+        } finally {
+            Tracing.endSection();
         }
         mediaPlayer.start();
+        AlarmTimeline.get(context).mark(TimelineStage.SOUND_STARTED);
         LogFileWriter.logInfo(context, TAG, "MediaPlayer started successfully");
 
         // Start vibration
@@ -156,6 +298,10 @@ public class AlarmReceiver extends BroadcastReceiver {
             Log.d(TAG, "Stopping alarm");
         }
         isAlarmActive = false;
+        if (context != null) {
+            AlarmSessionCheckpoint.get(context).clear();
+            cancelRecoveryWatchdog(context);
+        }
         
         if (mediaPlayer != null) {
             if (mediaPlayer.isPlaying()) {
@@ -174,5 +320,8 @@ public class AlarmReceiver extends BroadcastReceiver {
                 LogFileWriter.logInfo(context, TAG, "Vibrator cancelled");
             }
         }
+        if (context != null) {
+            AlarmTimeline.get(context).mark(TimelineStage.RELEASED);
+        }
     }
 } 
\ No newline at end of file
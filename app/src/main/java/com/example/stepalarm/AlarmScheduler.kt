@@ -2,145 +2,657 @@ package com.example.stepalarm
 
 import android.app.AlarmManager
 import android.app.PendingIntent
+import android.app.backup.BackupManager
 import android.content.Context
 import android.content.Intent
+import android.os.Build
+import android.provider.Settings
+import android.util.Log
+import java.util.concurrent.atomic.AtomicLong
 
+/**
+ * Arms alarms in AlarmManager. By default every repeat day of every alarm gets its own
+ * exact PendingIntent. In "next alarm only" mode a single PendingIntent is kept armed for
+ * the earliest upcoming minute in the WeeklyFireIndex and re-armed on every trigger and
+ * every change, so the number of system alarms stays at one however many alarms exist.
+ *
+ * What is armed is recorded in the ScheduleLedger. Every operation works out the desired
+ * entries and issues AlarmManager calls only where they differ from the ledger.
+ *
+ * Entries are handed to AlarmManager through the configured DeliveryTier. Without the
+ * exact alarm permission the exact tiers fall back to INEXACT, and everything armed
+ * is re-armed whenever the tier in effect changes. If the permission goes away while
+ * a batch is being issued, the whole ledger is re-armed inexactly there and then, and
+ * INEXACT is recorded as the armed tier.
+ *
+ * Every public operation runs as one Batch: the AlarmManager calls it works out are
+ * coalesced per request code and issued together at the end, with PendingIntents taken
+ * from a pool keyed by request code. A PendingIntent carries its request code, alarm id and
+ * next-alarm slot, which are fixed per code except for the next-alarm-only entry, so a pooled
+ * one is only replaced when that entry moves to another alarm. The receiver takes the fire
+ * time and tier from the ledger, and still rings from the extras if the ledger lost the entry.
+ */
 object AlarmScheduler {
+    private const val TAG = "AlarmScheduler"
+    private const val ACTION_ALARM_TRIGGERED = "com.example.stepalarm.ALARM_TRIGGERED"
+    
+    private const val EXTRA_REQUEST_CODE = "request_code"
+    private const val EXTRA_ALARM_ID = "alarm_id"
+    private const val EXTRA_NEXT_ALARM_SLOT = "next_alarm_slot"
+    private const val NEXT_ALARM_REQUEST_CODE = -2 // -1 is AlarmReceiver's recovery watchdog
+    // Each alarm owns the request codes id * 10 + day: ONE_TIME_DAY for a one-time alarm, the
+    // Calendar.DAY_OF_WEEK for each repeat day, RECURRENCE_DAY for a RecurrenceRule and
+    // TEST_DAY for a one-time alarm that AlarmTestRun armed at an exact time
+    private const val ONE_TIME_DAY = 0
+    private const val RECURRENCE_DAY = 8
+    private const val TEST_DAY = 9
+    private const val PREFS_NAME = "alarm_scheduler"
+    private const val KEY_NEXT_ALARM_ONLY = "next_alarm_only"
+    private const val KEY_REARMED_BOOT = "rearmed_boot"
+    private const val KEY_DELIVERY_TIER = "delivery_tier"
+    private const val KEY_ARMED_TIER = "armed_tier"
+    
+    // How late an INEXACT entry may be delivered
+    private const val INEXACT_WINDOW_MS = 5 * 60 * 1000L
+    
+    // A ledger entry this far past its fire time should have been re-armed by the receiver
+    private const val OVERDUE_GRACE_MS = 10 * 60 * 1000L
+    
+    // Number of AlarmManager calls issued and avoided by one reconcile pass
+    class ReconcileResult(val armed: Int, val cancelled: Int, val unchanged: Int)
+    
+    // What a delivered alarm was armed for; nextAlarmSlot is -1 unless it is the next-alarm-only entry
+    class Trigger(val alarmId: Long, val nextAlarmSlot: Int, val scheduledTime: Long, val tier: DeliveryTier?)
+    
+    // AlarmManager calls of one operation, at most one per request code; a null entry cancels
+    // tier drops to INEXACT if AlarmManager refuses an exact call part way through the flush
+    private class Batch(var tier: DeliveryTier, var rearmAll: Boolean) {
+        val operations = LinkedHashMap<Int, ScheduleLedger.Entry?>()
+    }
+    
+    // A pooled PendingIntent and the extras it was made with
+    private class PooledIntent(val pendingIntent: PendingIntent, val alarmId: Long, val nextAlarmSlot: Int)
+    
+    private val currentBatch = ThreadLocal<Batch>()
+    // Guarded by the ledger lock, like everything that issues AlarmManager calls
+    private val pendingIntents = HashMap<Int, PooledIntent>()
+    private var showIntent: PendingIntent? = null
+    private val binderCalls = AtomicLong()
+    
+    // How entries are handed to AlarmManager, from most to least punctual
+    enum class DeliveryTier {
+        // setAlarmClock(): not deferred by Doze, and shown to the user as the upcoming alarm
+        ALARM_CLOCK,
+        // setExactAndAllowWhileIdle(): exact, but rate limited while the device is idle
+        EXACT_WHILE_IDLE,
+        // setWindow(): up to INEXACT_WINDOW_MS late, needs no exact alarm permission
+        INEXACT
+    }
+    
+    @JvmStatic
+    fun isNextAlarmOnly(context: Context): Boolean {
+        return DeviceStorage.preferences(context, PREFS_NAME)
+            .getBoolean(KEY_NEXT_ALARM_ONLY, false)
+    }
+    
+    @JvmStatic
+    fun getDeliveryTier(context: Context): DeliveryTier {
+        val name = DeviceStorage.preferences(context, PREFS_NAME).getString(KEY_DELIVERY_TIER, null)
+        return DeliveryTier.values().firstOrNull { it.name == name } ?: DeliveryTier.ALARM_CLOCK
+    }
+    
+    // The reconcile notices the tier in effect changed and re-arms every entry with the new one
+    @JvmStatic
+    fun setDeliveryTier(context: Context, tier: DeliveryTier) {
+        if (getDeliveryTier(context) == tier) {
+            return
+        }
+        DeviceStorage.preferences(context, PREFS_NAME).edit()
+            .putString(KEY_DELIVERY_TIER, tier.name)
+            .commit()
+        // AlarmBackupAgent sends the settings along with the alarms
+        BackupManager.dataChanged(context.packageName)
+        reconcile(context)
+    }
+    
+    // The configured tier, or INEXACT while the exact alarm permission is not granted
+    @JvmStatic
+    fun effectiveDeliveryTier(context: Context): DeliveryTier {
+        val tier = getDeliveryTier(context)
+        if (tier != DeliveryTier.INEXACT && Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            val alarmManager = context.getSystemService(Context.ALARM_SERVICE) as AlarmManager
+            binderCalls.incrementAndGet()
+            if (!alarmManager.canScheduleExactAlarms()) {
+                return DeliveryTier.INEXACT
+            }
+        }
+        return tier
+    }
+    
+    // Switches modes; the reconcile cancels whatever the old mode had armed
+    @JvmStatic
+    fun setNextAlarmOnly(context: Context, enabled: Boolean) {
+        if (isNextAlarmOnly(context) == enabled) {
+            return
+        }
+        DeviceStorage.preferences(context, PREFS_NAME).edit()
+            .putBoolean(KEY_NEXT_ALARM_ONLY, enabled)
+            .commit()
+        BackupManager.dataChanged(context.packageName)
+        reconcile(context)
+    }
+    
+    // Binder calls made by scheduling since the process started
+    @JvmStatic
+    fun getBinderCallCount(): Long = binderCalls.get()
+    
+    /**
+     * Runs block as one operation: the AlarmManager calls of every scheduling method it
+     * calls are coalesced and issued when it returns. The ledger stays locked meanwhile.
+     */
+    @JvmStatic
+    fun batch(context: Context, name: String, block: Runnable) {
+        inBatch(context, name) { _, _ -> block.run() }
+    }
+    
     @JvmStatic
     fun scheduleAlarm(context: Context, alarm: Alarm) {
-        if (!alarm.isEnabled) {
-            cancelAlarm(context, alarm)
+        if (isNextAlarmOnly(context)) {
+            armNextAlarm(context)
             return
         }
-        
-        val alarmManager = context.getSystemService(Context.ALARM_SERVICE) as AlarmManager
-        
-        if (alarm.isRepeating && alarm.repeatDays.isNotEmpty()) {
-            // Schedule for each repeat day
-            val currentDayOfWeek = java.util.Calendar.getInstance().get(java.util.Calendar.DAY_OF_WEEK)
-            val currentTime = System.currentTimeMillis()
-            
-            alarm.repeatDays.forEach { dayOfWeek ->
-                val calendar = java.util.Calendar.getInstance().apply {
-                    set(java.util.Calendar.HOUR_OF_DAY, alarm.hour)
-                    set(java.util.Calendar.MINUTE, alarm.minute)
-                    set(java.util.Calendar.SECOND, 0)
-                    set(java.util.Calendar.MILLISECOND, 0)
-                    
-                    // Calculate days until the target day of week
-                    var daysUntilTarget = dayOfWeek - currentDayOfWeek
-                    if (daysUntilTarget < 0) {
-                        daysUntilTarget += 7
-                    }
-                    
-                    // If it's today but time has passed, schedule for next week
-                    if (daysUntilTarget == 0 && timeInMillis <= currentTime) {
-                        daysUntilTarget = 7
-                    }
-                    
-                    add(java.util.Calendar.DAY_OF_YEAR, daysUntilTarget)
-                }
-                
-                val intent = Intent(context, AlarmReceiver::class.java).apply {
-                    action = "com.example.stepalarm.ALARM_TRIGGERED"
-                    putExtra("alarm_id", alarm.id)
+        reconcileAlarms(context, "scheduleAlarm", setOf(alarm.id)) { listOf(alarm) }
+    }
+    
+    @JvmStatic
+    fun cancelAlarm(context: Context, alarm: Alarm) {
+        if (isNextAlarmOnly(context)) {
+            armNextAlarm(context)
+            return
+        }
+        reconcileAlarms(context, "cancelAlarm", setOf(alarm.id)) { emptyList() }
+    }
+    
+    // Schedule side of AlarmDatabase.edit(): brings the changed alarms' entries in line with their current state.
+    // StepAlarmApplication feeds every batch through here via AlarmDatabase.observe(). Batches committed on
+    // different threads can be delivered out of order, so the alarms are read from the latest snapshot under
+    // the ledger lock rather than taken from the changes.
+    @JvmStatic
+    fun applyChanges(context: Context, changes: List<AlarmDatabase.Change>) {
+        if (isNextAlarmOnly(context)) {
+            armNextAlarm(context)
+            return
+        }
+        val alarmIds = changes.mapTo(HashSet(changes.size)) { it.alarmId }
+        val alarmDatabase = AlarmDatabase(context)
+        reconcileAlarms(context, "applyChanges(${changes.size})", alarmIds) {
+            alarmIds.mapNotNull { alarmDatabase.getAlarm(it) }
+        }
+    }
+    
+    // Re-arms after a repeating alarm fired; deleted one-time alarms are handled by applyChanges
+    @JvmStatic
+    fun rescheduleAfterTrigger(context: Context, alarm: Alarm) {
+        scheduleAlarm(context, alarm)
+    }
+    
+    // Points the single PendingIntent at the earliest upcoming minute, or cancels it if nothing is enabled.
+    // Alarms that share that minute are looked up by the receiver from the slot. The receiver passes the
+    // scheduled time of the delivered trigger, so a late delivery does not skip the alarms in between.
+    @JvmStatic
+    @JvmOverloads
+    fun armNextAlarm(context: Context, triggeredAt: Long = 0) {
+        val desired = {
+            HashMap<Int, ScheduleLedger.Entry>(1).also { addNextAlarmEntry(context, it, triggeredAt) }
+        }
+        reconcile(context, "armNextAlarm", desired) { code, _ -> code == NEXT_ALARM_REQUEST_CODE }
+    }
+    
+    // Arms a one-time alarm at an exact time for AlarmTestRun instead of its hour and minute.
+    // Reconcile passes keep the entry as it is until the alarm is deleted, disabled or edited.
+    @JvmStatic
+    fun scheduleTestAlarm(context: Context, alarm: Alarm, triggerAtMillis: Long) {
+        inBatch(context, "scheduleTestAlarm") { batch, ledger ->
+            val oneTimeCode = requestCode(alarm.id, ONE_TIME_DAY)
+            if (ledger[oneTimeCode] != null || batch.operations.containsKey(oneTimeCode)) {
+                batch.operations[oneTimeCode] = null
+                ledger.remove(oneTimeCode)
+            }
+            val code = requestCode(alarm.id, TEST_DAY)
+            val entry = ScheduleLedger.Entry(alarm.id, TEST_DAY, triggerAtMillis)
+            batch.operations[code] = entry
+            ledger.put(code, entry)
+        }
+    }
+    
+    /**
+     * Looks up what a delivered intent was armed for. The alarm comes from the intent's extras;
+     * the fire time and tier come from the ledger and are unknown (0 and null) if it lost the
+     * entry. Call before re-arming, which replaces the ledger entry.
+     */
+    @JvmStatic
+    fun resolveTrigger(context: Context, intent: Intent): Trigger {
+        val alarmId = intent.getLongExtra(EXTRA_ALARM_ID, -1)
+        val slot = intent.getIntExtra(EXTRA_NEXT_ALARM_SLOT, -1)
+        if (!intent.hasExtra(EXTRA_REQUEST_CODE)) {
+            return Trigger(alarmId, slot, 0, null)
+        }
+        val code = intent.getIntExtra(EXTRA_REQUEST_CODE, 0)
+        val ledger = ScheduleLedger.getInstance(context)
+        val entry = synchronized(ledger) { ledger[code] }
+        if (entry == null || entry.alarmId != alarmId) {
+            Log.w(TAG, "No ledger entry for request code $code, ringing alarm $alarmId from the intent")
+            return Trigger(alarmId, slot, 0, null)
+        }
+        return Trigger(alarmId, slot, entry.fireTime, armedTier(context))
+    }
+    
+    @JvmStatic
+    fun rescheduleAllAlarms(context: Context): ReconcileResult {
+        val alarmDatabase = AlarmDatabase(context)
+        alarmDatabase.refreshNextFireTimes(alarmDatabase.getAllAlarms().filter { it.isEnabled })
+        return reconcile(context)
+    }
+    
+    /**
+     * The system forgets all alarms on reboot, so the ledger starts over before re-arming.
+     * Called at LOCKED_BOOT_COMPLETED and again at BOOT_COMPLETED; the ledger is cleared
+     * once per boot, so the second pass only arms what the first could not.
+     */
+    @JvmStatic
+    fun rescheduleAfterBoot(context: Context): ReconcileResult {
+        val ledger = ScheduleLedger.getInstance(context)
+        val prefs = DeviceStorage.preferences(context, PREFS_NAME)
+        val bootCount = Settings.Global.getInt(context.contentResolver, Settings.Global.BOOT_COUNT, -1)
+        synchronized(ledger) {
+            if (bootCount < 0 || prefs.getInt(KEY_REARMED_BOOT, -1) != bootCount) {
+                ledger.clear()
+                ledger.save()
+                prefs.edit().putInt(KEY_REARMED_BOOT, bootCount).commit()
+            }
+        }
+        // SQLite can't be opened before the unlock; its stored fire times catch up at BOOT_COMPLETED
+        return if (DeviceStorage.isUserUnlocked(context)) rescheduleAllAlarms(context) else reconcile(context)
+    }
+    
+    // Full pass over every alarm, used after boot, clock changes and mode switches
+    @JvmStatic
+    fun reconcile(context: Context): ReconcileResult {
+        val result = reconcile(context, "reconcile", { allEntries(context) }) { _, _ -> true }
+        Log.d(TAG, "Reconciled: ${result.armed} armed, ${result.cancelled} cancelled, ${result.unchanged} unchanged")
+        return result
+    }
+    
+    /**
+     * Brings AlarmManager back in line with the ledger after the system may have dropped
+     * alarms, e.g. on a force stop, which sends no broadcast. AlarmManager cannot be asked
+     * what it holds, and a PendingIntent outlives its alarm, so every desired entry is
+     * re-armed rather than checked. Returns the number of entries that were long overdue,
+     * the one sign of a missed delivery the ledger itself can show.
+     */
+    @JvmStatic
+    fun verifyLedger(context: Context): Int {
+        val now = System.currentTimeMillis()
+        val overdue = inBatch(context, "verifyLedger") { batch, ledger ->
+            val count = ledger.requestCodes { _, entry -> entry.fireTime < now - OVERDUE_GRACE_MS }.size
+            batch.rearmAll = false
+            reconcileAll(context, batch, ledger)
+            count
+        }
+        if (overdue > 0) {
+            LogFileWriter.logWarning(context, TAG, "$overdue ledger entries were overdue, re-armed every alarm")
+        }
+        return overdue
+    }
+    
+    // Per-alarm mode: only the ledger entries that belong to the given ids are compared
+    private fun reconcileAlarms(context: Context, name: String, alarmIds: Set<Long>, alarms: () -> List<Alarm>) {
+        val desired = {
+            val entries = HashMap<Int, ScheduleLedger.Entry>()
+            val now = System.currentTimeMillis()
+            alarms().forEach { addAlarmEntries(it, now, entries) }
+            entries
+        }
+        reconcile(context, name, desired) { code, entry ->
+            code != NEXT_ALARM_REQUEST_CODE && alarmIds.contains(entry.alarmId)
+        }
+    }
+    
+    // Every entry that should be armed in the current mode
+    private fun allEntries(context: Context): MutableMap<Int, ScheduleLedger.Entry> {
+        val desired = HashMap<Int, ScheduleLedger.Entry>()
+        if (isNextAlarmOnly(context)) {
+            addNextAlarmEntry(context, desired)
+        } else {
+            val now = System.currentTimeMillis()
+            AlarmDatabase(context).getAllAlarms().forEach { addAlarmEntries(it, now, desired) }
+        }
+        return desired
+    }
+    
+    private fun armedTier(context: Context): DeliveryTier? {
+        val name = DeviceStorage.preferences(context, PREFS_NAME).getString(KEY_ARMED_TIER, null)
+        return DeliveryTier.values().firstOrNull { it.name == name }
+    }
+    
+    /**
+     * Opens a Batch on this thread, or joins the one already open. The outermost call issues
+     * the coalesced AlarmManager calls, saves the ledger and logs how many binder calls the
+     * operation cost. If the tier in effect changed since the last operation, the first
+     * reconcile in the batch becomes a full pass that re-arms every entry.
+     */
+    private inline fun <T> inBatch(context: Context, name: String, block: (Batch, ScheduleLedger) -> T): T {
+        val ledger = ScheduleLedger.getInstance(context)
+        synchronized(ledger) {
+            currentBatch.get()?.let { return block(it, ledger) }
+            val callsBefore = binderCalls.get()
+            val tier = effectiveDeliveryTier(context)
+            val batch = Batch(tier, rearmAll = ledger.size > 0 && armedTier(context) != tier)
+            // Armed by an older version under request codes that are no longer used
+            ledger.takeStaleCodes().forEach { batch.operations[it] = null }
+            if (ledger.takeUnrecorded()) {
+                // Builds before the ledger armed one-time alarms at request code id
+                val table = AlarmDatabase(context).getAlarmTable()
+                for (row in 0 until table.size) {
+                    batch.operations[table.getId(row).toInt()] = null
                 }
-                
-                val pendingIntent = PendingIntent.getBroadcast(
-                    context,
-                    (alarm.id * 10 + dayOfWeek).toInt(), // Unique request code for each day
-                    intent,
-                    PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE
-                )
-                
-                alarmManager.setExactAndAllowWhileIdle(
-                    AlarmManager.RTC_WAKEUP,
-                    calendar.timeInMillis,
-                    pendingIntent
-                )
             }
+            currentBatch.set(batch)
+            try {
+                return block(batch, ledger)
+            } finally {
+                currentBatch.remove()
+                flush(context, batch, ledger)
+                ledger.save()
+                saveArmedTier(context, batch.tier)
+                Log.d(TAG, "$name: ${batch.operations.size} AlarmManager operations, " +
+                    "${binderCalls.get() - callsBefore} binder calls")
+            }
+        }
+    }
+    
+    // Arms desired entries that the ledger lacks or has at another time, and cancels ledger entries in scope
+    // that are no longer desired. The desired entries are computed under the ledger lock, so the last pass to
+    // run always sees the newest alarms.
+    private fun reconcile(
+        context: Context,
+        name: String,
+        desiredEntries: () -> MutableMap<Int, ScheduleLedger.Entry>,
+        inScope: (Int, ScheduleLedger.Entry) -> Boolean
+    ): ReconcileResult = inBatch(context, name) { batch, ledger ->
+        if (batch.rearmAll) {
+            batch.rearmAll = false
+            Log.i(TAG, "Delivery tier is now ${batch.tier}, re-arming ${ledger.size} entries")
+            reconcileAll(context, batch, ledger)
         } else {
-            // One-time alarm
-            val calendar = java.util.Calendar.getInstance().apply {
-                set(java.util.Calendar.HOUR_OF_DAY, alarm.hour)
-                set(java.util.Calendar.MINUTE, alarm.minute)
-                set(java.util.Calendar.SECOND, 0)
-                set(java.util.Calendar.MILLISECOND, 0)
-                
-                if (timeInMillis <= System.currentTimeMillis()) {
-                    add(java.util.Calendar.DAY_OF_YEAR, 1)
+            val desired = desiredEntries()
+            keepTestEntries(context, ledger, desired, inScope)
+            var armed = 0
+            var cancelled = 0
+            var unchanged = 0
+            for (code in ledger.requestCodes(inScope)) {
+                if (!desired.containsKey(code)) {
+                    batch.operations[code] = null
+                    ledger.remove(code)
+                    cancelled++
                 }
             }
-            
-            val intent = Intent(context, AlarmReceiver::class.java).apply {
-                action = "com.example.stepalarm.ALARM_TRIGGERED"
-                putExtra("alarm_id", alarm.id)
+            for ((code, entry) in desired) {
+                if (ledger[code] == entry) {
+                    unchanged++
+                    continue
+                }
+                // Setting the same PendingIntent again replaces the previous trigger time
+                batch.operations[code] = entry
+                ledger.put(code, entry)
+                armed++
             }
-            
-            val pendingIntent = PendingIntent.getBroadcast(
-                context,
-                alarm.id.toInt(),
-                intent,
-                PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE
-            )
-            
-            alarmManager.setExactAndAllowWhileIdle(
-                AlarmManager.RTC_WAKEUP,
-                calendar.timeInMillis,
-                pendingIntent
-            )
+            ReconcileResult(armed, cancelled, unchanged)
         }
     }
     
-    @JvmStatic
-    fun cancelAlarm(context: Context, alarm: Alarm) {
+    // Full pass that re-arms every desired entry whether or not the ledger has it
+    private fun reconcileAll(context: Context, batch: Batch, ledger: ScheduleLedger): ReconcileResult {
+        val desired = allEntries(context)
+        keepTestEntries(context, ledger, desired) { _, _ -> true }
+        var cancelled = 0
+        for (code in ledger.requestCodes { _, _ -> true }) {
+            if (!desired.containsKey(code)) {
+                batch.operations[code] = null
+                ledger.remove(code)
+                cancelled++
+            }
+        }
+        for ((code, entry) in desired) {
+            // Any kind of set() replaces whatever alarm the same PendingIntent had
+            batch.operations[code] = entry
+            ledger.put(code, entry)
+        }
+        return ReconcileResult(desired.size, cancelled, 0)
+    }
+    
+    // A test entry in scope stays desired at its own time, in place of the one-time entry its alarm would
+    // get from hour and minute, for as long as that alarm would get one; otherwise it is left to be cancelled
+    private fun keepTestEntries(
+        context: Context,
+        ledger: ScheduleLedger,
+        desired: MutableMap<Int, ScheduleLedger.Entry>,
+        inScope: (Int, ScheduleLedger.Entry) -> Boolean
+    ) {
+        val codes = ledger.requestCodes { code, entry -> entry.day == TEST_DAY && inScope(code, entry) }
+        if (codes.isEmpty()) {
+            return
+        }
+        val alarmDatabase = AlarmDatabase(context)
+        val now = System.currentTimeMillis()
+        for (code in codes) {
+            val entry = ledger[code] ?: continue
+            val alarm = alarmDatabase.getAlarm(entry.alarmId) ?: continue
+            val entries = HashMap<Int, ScheduleLedger.Entry>(1)
+            addAlarmEntries(alarm, now, entries)
+            val oneTimeCode = requestCode(alarm.id, ONE_TIME_DAY)
+            if (entries.containsKey(oneTimeCode)) {
+                desired.remove(oneTimeCode)
+                desired[code] = entry
+            }
+        }
+    }
+    
+    private fun saveArmedTier(context: Context, tier: DeliveryTier) {
+        val prefs = DeviceStorage.preferences(context, PREFS_NAME)
+        if (prefs.getString(KEY_ARMED_TIER, null) != tier.name) {
+            prefs.edit().putString(KEY_ARMED_TIER, tier.name).apply()
+        }
+    }
+    
+    private fun flush(context: Context, batch: Batch, ledger: ScheduleLedger) {
+        if (batch.operations.isEmpty()) {
+            return
+        }
         val alarmManager = context.getSystemService(Context.ALARM_SERVICE) as AlarmManager
-        
-        if (alarm.isRepeating && alarm.repeatDays.isNotEmpty()) {
-            // Cancel all repeat day alarms
-            alarm.repeatDays.forEach { dayOfWeek ->
-                val intent = Intent(context, AlarmReceiver::class.java).apply {
-                    action = "com.example.stepalarm.ALARM_TRIGGERED"
-                    putExtra("alarm_id", alarm.id)
+        Tracing.beginSection("AlarmScheduler.flush")
+        try {
+            val armedInexactly = HashSet<Int>()
+            var refused = false
+            for ((code, entry) in batch.operations) {
+                if (entry == null) {
+                    cancel(context, alarmManager, code)
+                    continue
+                }
+                if (!arm(context, alarmManager, batch.tier, code, entry)) {
+                    batch.tier = DeliveryTier.INEXACT
+                    refused = true
+                }
+                if (batch.tier == DeliveryTier.INEXACT) {
+                    armedInexactly.add(code)
                 }
-                
-                val pendingIntent = PendingIntent.getBroadcast(
-                    context,
-                    (alarm.id * 10 + dayOfWeek).toInt(),
-                    intent,
-                    PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE
-                )
-                
-                alarmManager.cancel(pendingIntent)
             }
-        } else {
-            // Cancel one-time alarm
-            val intent = Intent(context, AlarmReceiver::class.java).apply {
-                action = "com.example.stepalarm.ALARM_TRIGGERED"
-                putExtra("alarm_id", alarm.id)
+            if (refused) {
+                // Revoking the permission also cancels the exact alarms armed before it, so the rest follow
+                val codes = ledger.requestCodes { code, _ -> !armedInexactly.contains(code) }
+                Log.w(TAG, "Exact alarms refused, re-arming ${codes.size} more entries inexactly")
+                for (code in codes) {
+                    arm(context, alarmManager, batch.tier, code, ledger[code] ?: continue)
+                }
             }
-            
-            val pendingIntent = PendingIntent.getBroadcast(
-                context,
-                alarm.id.toInt(),
-                intent,
-                PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE
-            )
-            
-            alarmManager.cancel(pendingIntent)
+        } finally {
+            Tracing.endSection()
         }
     }
     
-    @JvmStatic
-    fun rescheduleAllAlarms(context: Context) {
+    // Returns false if the exact call was refused and the entry was armed inexactly instead
+    private fun arm(
+        context: Context,
+        alarmManager: AlarmManager,
+        tier: DeliveryTier,
+        requestCode: Int,
+        entry: ScheduleLedger.Entry
+    ): Boolean {
+        val pendingIntent = pendingIntentFor(context, requestCode, entry)
+        binderCalls.incrementAndGet()
+        try {
+            when (tier) {
+                DeliveryTier.ALARM_CLOCK -> alarmManager.setAlarmClock(
+                    AlarmManager.AlarmClockInfo(entry.fireTime, showIntentFor(context)), pendingIntent)
+                DeliveryTier.EXACT_WHILE_IDLE -> alarmManager.setExactAndAllowWhileIdle(
+                    AlarmManager.RTC_WAKEUP, entry.fireTime, pendingIntent)
+                DeliveryTier.INEXACT -> alarmManager.setWindow(
+                    AlarmManager.RTC_WAKEUP, entry.fireTime, INEXACT_WINDOW_MS, pendingIntent)
+            }
+            return true
+        } catch (e: SecurityException) {
+            // The exact alarm permission went away after effectiveDeliveryTier() looked
+            Log.w(TAG, "Exact alarm refused, arming request code $requestCode inexactly", e)
+            binderCalls.incrementAndGet()
+            alarmManager.setWindow(AlarmManager.RTC_WAKEUP, entry.fireTime, INEXACT_WINDOW_MS, pendingIntent)
+            return false
+        }
+    }
+    
+    private fun addAlarmEntries(alarm: Alarm, now: Long, out: MutableMap<Int, ScheduleLedger.Entry>) {
+        if (!alarm.isEnabled) {
+            return
+        }
+        val recurrence = alarm.recurrence
+        if (recurrence != null) {
+            val fireTime = recurrence.nextFireTime(alarm.hour * 60 + alarm.minute, now)
+            if (fireTime >= 0) {
+                out[requestCode(alarm.id, RECURRENCE_DAY)] = ScheduleLedger.Entry(alarm.id, RECURRENCE_DAY, fireTime)
+            }
+        } else if (alarm.isRepeating && alarm.repeatDays.isNotEmpty()) {
+            alarm.repeatDays.forEach { dayOfWeek ->
+                // Unique request code for each day
+                out[requestCode(alarm.id, dayOfWeek)] =
+                    ScheduleLedger.Entry(alarm.id, dayOfWeek, nextFireTimeOnDay(alarm, dayOfWeek, now))
+            }
+        } else {
+            out[requestCode(alarm.id, ONE_TIME_DAY)] =
+                ScheduleLedger.Entry(alarm.id, ONE_TIME_DAY, nextOneTimeFireTime(alarm, now))
+        }
+    }
+    
+    private fun requestCode(alarmId: Long, day: Int): Int = (alarmId * 10 + day).toInt()
+    
+    private fun addNextAlarmEntry(context: Context, out: MutableMap<Int, ScheduleLedger.Entry>, triggeredAt: Long = 0) {
+        val now = System.currentTimeMillis()
+        val pending = ScheduleLedger.getInstance(context)[NEXT_ALARM_REQUEST_CODE]?.fireTime ?: now
+        val after = when {
+            triggeredAt > 0 -> minOf(triggeredAt, now)
+            // Armed but not delivered yet, e.g. deferred by Doze; it still has to ring
+            pending <= now -> pending - 1
+            else -> now
+        }
         val alarmDatabase = AlarmDatabase(context)
-        val alarms = alarmDatabase.getAllAlarms()
+        val fireIndex = alarmDatabase.getFireIndex()
+        var triggerAtMillis = fireIndex.nextFireTime(after)
+        var alarmId = -1L
+        if (triggerAtMillis >= 0) {
+            fireIndex.alarmsAt(WeeklyFireIndex.currentSlot(triggerAtMillis)).firstOrNull()?.let { alarmId = it }
+        }
         
-        alarms.forEach { alarm ->
-            if (alarm.isEnabled) {
-                scheduleAlarm(context, alarm)
+        // Alarms with a recurrence rule are not in the weekly index; an index alarm wins a tie
+        val table = alarmDatabase.getAlarmTable()
+        if (table.hasRecurrences) {
+            for (row in 0 until table.size) {
+                val recurrence = table.getRecurrence(row) ?: continue
+                if (!table.isEnabled(row)) continue
+                val fireTime = recurrence.nextFireTime(table.getMinuteOfDay(row), after)
+                if (fireTime >= 0 && (alarmId < 0 || fireTime < triggerAtMillis)) {
+                    triggerAtMillis = fireTime
+                    alarmId = table.getId(row)
+                }
+            }
+        }
+        if (alarmId >= 0) {
+            val slot = WeeklyFireIndex.currentSlot(triggerAtMillis)
+            out[NEXT_ALARM_REQUEST_CODE] = ScheduleLedger.Entry(alarmId, slot, triggerAtMillis)
+        }
+    }
+    
+    private fun nextFireTimeOnDay(alarm: Alarm, dayOfWeek: Int, now: Long): Long {
+        return NextFireTimeCalculator.systemDefault()
+            .nextFireTime(alarm.hour, alarm.minute, 1 shl (dayOfWeek - 1), now)
+    }
+    
+    private fun nextOneTimeFireTime(alarm: Alarm, now: Long): Long {
+        return NextFireTimeCalculator.systemDefault()
+            .nextFireTime(alarm.hour, alarm.minute, NextFireTimeCalculator.ALL_DAYS, now)
+    }
+    
+    // Extras are not part of PendingIntent identity, so lookups and cancels can use the bare intent
+    private fun createIntent(context: Context): Intent {
+        return Intent(context, AlarmReceiver::class.java).apply {
+            action = ACTION_ALARM_TRIGGERED
+        }
+    }
+    
+    // Reused across re-arms while the extras stay the same, which they do for every code but the next-alarm one
+    private fun pendingIntentFor(context: Context, requestCode: Int, entry: ScheduleLedger.Entry): PendingIntent {
+        val slot = if (requestCode == NEXT_ALARM_REQUEST_CODE) entry.day else -1
+        pendingIntents[requestCode]?.let {
+            if (it.alarmId == entry.alarmId && it.nextAlarmSlot == slot) {
+                return it.pendingIntent
             }
         }
+        binderCalls.incrementAndGet()
+        // FLAG_UPDATE_CURRENT replaces the extras of a PendingIntent made by an older version or for another alarm
+        val pendingIntent = PendingIntent.getBroadcast(
+            context,
+            requestCode,
+            createIntent(context)
+                .putExtra(EXTRA_REQUEST_CODE, requestCode)
+                .putExtra(EXTRA_ALARM_ID, entry.alarmId)
+                .putExtra(EXTRA_NEXT_ALARM_SLOT, slot),
+            PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE
+        )
+        pendingIntents[requestCode] = PooledIntent(pendingIntent, entry.alarmId, slot)
+        return pendingIntent
+    }
+    
+    // Opened when the user taps the upcoming alarm the system shows for ALARM_CLOCK entries
+    private fun showIntentFor(context: Context): PendingIntent {
+        showIntent?.let { return it }
+        binderCalls.incrementAndGet()
+        return PendingIntent.getActivity(
+            context,
+            0,
+            Intent(context, MainActivity::class.java),
+            PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE
+        ).also { showIntent = it }
+    }
+    
+    // Looks the PendingIntent up rather than creating one; it stays alive so the pool can re-arm it later
+    private fun cancel(context: Context, alarmManager: AlarmManager, requestCode: Int) {
+        val pendingIntent = pendingIntents[requestCode]?.pendingIntent ?: run {
+            binderCalls.incrementAndGet()
+            PendingIntent.getBroadcast(
+                context,
+                requestCode,
+                createIntent(context),
+                PendingIntent.FLAG_NO_CREATE or PendingIntent.FLAG_IMMUTABLE
+            )
+        } ?: return
+        binderCalls.incrementAndGet()
+        alarmManager.cancel(pendingIntent)
     }
 }
-
@@ -0,0 +1,171 @@
+package com.example.stepalarm;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Small on-disk record of the alarm that is currently ringing, so that ringing and
+ * step counting can pick up where they left off if the process is killed.
+ * Step updates only touch volatile fields; the file is rewritten on a background
+ * thread at most once per FLUSH_INTERVAL_MS.
+ */
+public final class AlarmSessionCheckpoint {
+    private static final String TAG = "AlarmSessionCheckpoint";
+    private static final String FILE_NAME = "alarm_session.bin";
+    private static final int VERSION = 1;
+    public static final long FLUSH_INTERVAL_MS = 1000;
+    public static final long MAX_SESSION_AGE_MS = 30 * 60 * 1000; // Give up on sessions older than 30 minutes
+
+    public static final class Session {
+        public final long alarmId;
+        public final long startTime;     // Wall clock time the alarm started ringing
+        public final long stepBaseline;  // TYPE_STEP_COUNTER value at start, -1 if not known
+        public final long steps;
+
+        Session(long alarmId, long startTime, long stepBaseline, long steps) {
+            this.alarmId = alarmId;
+            this.startTime = startTime;
+            this.stepBaseline = stepBaseline;
+            this.steps = steps;
+        }
+    }
+
+    private static volatile AlarmSessionCheckpoint instance;
+
+    private final File file;
+    private final ScheduledExecutorService writer =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "AlarmSessionCheckpoint"));
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Runnable flushRunnable = this::flush;
+
+    private volatile boolean active = false;
+    private volatile long alarmId = -1;
+    private volatile long startTime = 0;
+    private volatile long stepBaseline = -1;
+    private volatile long steps = 0;
+
+    private AlarmSessionCheckpoint(Context context) {
+        // Device-protected so an alarm ringing before the first unlock can still checkpoint
+        file = DeviceStorage.file(context, FILE_NAME);
+    }
+
+    public static AlarmSessionCheckpoint get(Context context) {
+        AlarmSessionCheckpoint checkpoint = instance;
+        if (checkpoint == null) {
+            synchronized (AlarmSessionCheckpoint.class) {
+                if (instance == null) {
+                    instance = new AlarmSessionCheckpoint(context.getApplicationContext());
+                }
+                checkpoint = instance;
+            }
+        }
+        return checkpoint;
+    }
+
+    public void start(long alarmId) {
+        this.alarmId = alarmId;
+        this.startTime = System.currentTimeMillis();
+        this.stepBaseline = -1;
+        this.steps = 0;
+        active = true;
+        writer.execute(flushRunnable);
+    }
+
+    // Continue a session that was read back from disk after a restart
+    public void resume(Session session) {
+        alarmId = session.alarmId;
+        startTime = session.startTime;
+        stepBaseline = session.stepBaseline;
+        steps = session.steps;
+        active = true;
+    }
+
+    // Called from the sensor callback, so it must not do any I/O itself
+    public void updateSteps(long stepBaseline, long steps) {
+        if (!active) {
+            return;
+        }
+        this.stepBaseline = stepBaseline;
+        this.steps = steps;
+        if (flushScheduled.compareAndSet(false, true)) {
+            writer.schedule(() -> {
+                flushScheduled.set(false);
+                flush();
+            }, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void clear() {
+        active = false;
+        writer.execute(() -> {
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Failed to delete checkpoint file");
+            }
+        });
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    // In-memory view of the active session, or null if nothing is ringing
+    public Session current() {
+        if (!active) {
+            return null;
+        }
+        return new Session(alarmId, startTime, stepBaseline, steps);
+    }
+
+    // Reads the checkpoint left by a previous process; null if there is none or it is too old
+    public Session load() {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            Session session = new Session(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+            long age = System.currentTimeMillis() - session.startTime;
+            if (age < 0 || age > MAX_SESSION_AGE_MS) {
+                Log.i(TAG, "Discarding stale checkpoint for alarm " + session.alarmId);
+                return null;
+            }
+            return session;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read checkpoint", e);
+            return null;
+        }
+    }
+
+    private void flush() {
+        if (!active) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(VERSION);
+            out.writeLong(alarmId);
+            out.writeLong(startTime);
+            out.writeLong(stepBaseline);
+            out.writeLong(steps);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write checkpoint", e);
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.e(TAG, "Failed to replace checkpoint file");
+        }
+    }
+}
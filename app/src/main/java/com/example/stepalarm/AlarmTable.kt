@@ -0,0 +1,215 @@
+package com.example.stepalarm
+
+import java.util.Arrays
+
+/**
+ * Immutable, column-oriented table of alarms backed by primitive arrays. Rows are
+ * kept sorted by minute of day (ties in insertion order) and a second index sorted
+ * by id allows binary-search lookups. Nothing is boxed until a row is turned back
+ * into an Alarm.
+ */
+class AlarmTable private constructor(
+    private val ids: LongArray,
+    private val minutesOfDay: IntArray,
+    private val flags: IntArray,
+    private val rowsById: IntArray,
+    private val recurrences: Array<RecurrenceRule?>? // null while no alarm has a recurrence rule
+) {
+    companion object {
+        // flags layout: bits 0-6 repeat day mask, then the two booleans
+        private const val DAY_MASK = 0x7F
+        private const val FLAG_REPEATING = 1 shl 7
+        private const val FLAG_ENABLED = 1 shl 8
+        
+        @JvmField
+        val EMPTY = AlarmTable(LongArray(0), IntArray(0), IntArray(0), IntArray(0), null)
+        
+        @JvmStatic
+        fun of(alarms: Collection<Alarm>): AlarmTable {
+            val builder = Builder(alarms.size)
+            alarms.forEach { builder.add(it) }
+            return builder.build()
+        }
+        
+        fun packFlags(isRepeating: Boolean, isEnabled: Boolean, repeatDayMask: Int): Int {
+            var packed = repeatDayMask and DAY_MASK
+            if (isRepeating) packed = packed or FLAG_REPEATING
+            if (isEnabled) packed = packed or FLAG_ENABLED
+            return packed
+        }
+    }
+    
+    // Collects rows in any order; build() sorts them
+    class Builder(capacity: Int) {
+        private var ids = LongArray(capacity)
+        private var minutesOfDay = IntArray(capacity)
+        private var flags = IntArray(capacity)
+        private var recurrences: Array<RecurrenceRule?>? = null
+        private var size = 0
+        
+        fun add(alarm: Alarm): Builder {
+            return add(alarm.id, alarm.hour * 60 + alarm.minute,
+                packFlags(alarm.isRepeating, alarm.isEnabled, alarm.getRepeatDayMask()), alarm.recurrence)
+        }
+        
+        fun add(id: Long, minuteOfDay: Int, packedFlags: Int, recurrence: RecurrenceRule? = null): Builder {
+            if (size == ids.size) {
+                val capacity = maxOf(8, size * 2)
+                ids = ids.copyOf(capacity)
+                minutesOfDay = minutesOfDay.copyOf(capacity)
+                flags = flags.copyOf(capacity)
+                recurrences = recurrences?.copyOf(capacity)
+            }
+            ids[size] = id
+            minutesOfDay[size] = minuteOfDay
+            flags[size] = packedFlags
+            if (recurrence != null) {
+                val rules = recurrences ?: arrayOfNulls<RecurrenceRule>(ids.size).also { recurrences = it }
+                rules[size] = recurrence
+            }
+            size++
+            return this
+        }
+        
+        fun build(): AlarmTable {
+            // Sort row numbers by packing the sort key into the high bits of a long
+            val keys = LongArray(size) { row -> (minutesOfDay[row].toLong() shl 32) or row.toLong() }
+            Arrays.sort(keys)
+            val sortedIds = LongArray(size)
+            val sortedMinutes = IntArray(size)
+            val sortedFlags = IntArray(size)
+            val rules = recurrences
+            val sortedRules = if (rules != null) arrayOfNulls<RecurrenceRule>(size) else null
+            for (i in 0 until size) {
+                val row = keys[i].toInt()
+                sortedIds[i] = ids[row]
+                sortedMinutes[i] = minutesOfDay[row]
+                sortedFlags[i] = flags[row]
+                if (sortedRules != null) {
+                    sortedRules[i] = rules!![row]
+                }
+            }
+            
+            // Secondary index: (id, row) pairs sorted by id. Ids are far below 2^43 and rows below 2^20.
+            val idKeys = LongArray(size) { row -> (sortedIds[row] shl 20) or row.toLong() }
+            Arrays.sort(idKeys)
+            val rowsById = IntArray(size) { i -> (idKeys[i] and 0xFFFFF).toInt() }
+            return AlarmTable(sortedIds, sortedMinutes, sortedFlags, rowsById, sortedRules)
+        }
+    }
+    
+    // Value copy of one row, small enough to hand to list UIs and compare cheaply
+    data class Row(val id: Long, val minuteOfDay: Int, val flags: Int, val recurrence: RecurrenceRule? = null) {
+        val hour: Int
+            get() = minuteOfDay / 60
+        
+        val minute: Int
+            get() = minuteOfDay % 60
+        
+        val repeatDayMask: Int
+            get() = flags and DAY_MASK
+        
+        val isRepeating: Boolean
+            get() = flags and FLAG_REPEATING != 0
+        
+        val isEnabled: Boolean
+            get() = flags and FLAG_ENABLED != 0
+        
+        fun toAlarm(): Alarm {
+            return Alarm(id, hour, minute, isRepeating, Alarm.daysFromMask(repeatDayMask), isEnabled, recurrence)
+        }
+    }
+    
+    val size: Int
+        get() = ids.size
+    
+    fun getId(row: Int): Long = ids[row]
+    
+    fun getMinuteOfDay(row: Int): Int = minutesOfDay[row]
+    
+    fun getHour(row: Int): Int = minutesOfDay[row] / 60
+    
+    fun getMinute(row: Int): Int = minutesOfDay[row] % 60
+    
+    fun getRepeatDayMask(row: Int): Int = flags[row] and DAY_MASK
+    
+    fun isRepeating(row: Int): Boolean = flags[row] and FLAG_REPEATING != 0
+    
+    fun isEnabled(row: Int): Boolean = flags[row] and FLAG_ENABLED != 0
+    
+    fun getRecurrence(row: Int): RecurrenceRule? = recurrences?.get(row)
+    
+    val hasRecurrences: Boolean
+        get() = recurrences != null
+    
+    fun getAlarm(row: Int): Alarm {
+        return Alarm(
+            id = ids[row],
+            hour = getHour(row),
+            minute = getMinute(row),
+            isRepeating = isRepeating(row),
+            repeatDays = Alarm.daysFromMask(getRepeatDayMask(row)),
+            isEnabled = isEnabled(row),
+            recurrence = getRecurrence(row)
+        )
+    }
+    
+    // Row of the alarm with this id, or -1
+    fun indexOfId(id: Long): Int {
+        var low = 0
+        var high = rowsById.size - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val midId = ids[rowsById[mid]]
+            when {
+                midId < id -> low = mid + 1
+                midId > id -> high = mid - 1
+                else -> return rowsById[mid]
+            }
+        }
+        return -1
+    }
+    
+    fun getAlarmById(id: Long): Alarm? {
+        val row = indexOfId(id)
+        return if (row >= 0) getAlarm(row) else null
+    }
+    
+    // First row whose minute of day is >= the given one; size if there is none
+    fun firstRowAtOrAfter(minuteOfDay: Int): Int {
+        var low = 0
+        var high = minutesOfDay.size
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (minutesOfDay[mid] < minuteOfDay) low = mid + 1 else high = mid
+        }
+        return low
+    }
+    
+    fun maxId(): Long = if (rowsById.isEmpty()) 0L else ids[rowsById[rowsById.size - 1]]
+    
+    // New table with the given alarms replaced (or added) and the given ids removed
+    fun withChanges(upserts: Map<Long, Alarm>, deletedIds: Set<Long>): AlarmTable {
+        val builder = Builder(size + upserts.size)
+        for (row in ids.indices) {
+            val id = ids[row]
+            if (!upserts.containsKey(id) && !deletedIds.contains(id)) {
+                builder.add(id, minutesOfDay[row], flags[row], getRecurrence(row))
+            }
+        }
+        upserts.values.forEach { builder.add(it) }
+        return builder.build()
+    }
+    
+    fun toRows(): List<Row> {
+        return List(size) { row -> Row(ids[row], minutesOfDay[row], flags[row], getRecurrence(row)) }
+    }
+    
+    // Read-only list view in minute-of-day order; rows become Alarm objects only when accessed
+    fun asList(): List<Alarm> = object : AbstractList<Alarm>() {
+        override val size: Int
+            get() = this@AlarmTable.size
+        
+        override fun get(index: Int): Alarm = getAlarm(index)
+    }
+}
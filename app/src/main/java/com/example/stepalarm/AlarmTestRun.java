@@ -0,0 +1,184 @@
+package com.example.stepalarm;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Test mode that follows one real alarm through the whole chain and appends a
+ * per-stage latency breakdown to a CSV report in the app's files dir. Stage times
+ * are kept in SharedPreferences so a run survives the process being started fresh
+ * by AlarmManager.
+ */
+public final class AlarmTestRun {
+    private static final String TAG = "AlarmTestRun";
+    private static final String PREFS_NAME = "alarm_test_run";
+    private static final String REPORT_FILE_NAME = "alarm_test_reports.csv";
+
+    public enum Stage {
+        SCHEDULED,
+        DELIVERED,
+        SOUND_STARTED,
+        ACTIVITY_FIRST_FRAME,
+        SENSOR_REGISTERED,
+        FIRST_STEP,
+        DISMISSED
+    }
+
+    private static volatile AlarmTestRun instance;
+
+    private final Context context;
+    private final SharedPreferences prefs;
+    private final long[] stageTimes = new long[Stage.values().length]; // elapsedRealtime, 0 = not reached
+    private volatile boolean active;
+    private long alarmId;
+    private long triggerAtMillis;
+    private long deliveredAtMillis;
+
+    private AlarmTestRun(Context context) {
+        this.context = context;
+        prefs = DeviceStorage.preferences(context, PREFS_NAME);
+        active = prefs.getBoolean("active", false);
+        alarmId = prefs.getLong("alarm_id", -1);
+        triggerAtMillis = prefs.getLong("trigger_at", 0);
+        deliveredAtMillis = prefs.getLong("delivered_at", 0);
+        for (Stage stage : Stage.values()) {
+            stageTimes[stage.ordinal()] = prefs.getLong(stage.name(), 0);
+        }
+    }
+
+    public static AlarmTestRun get(Context context) {
+        AlarmTestRun run = instance;
+        if (run == null) {
+            synchronized (AlarmTestRun.class) {
+                if (instance == null) {
+                    instance = new AlarmTestRun(context.getApplicationContext());
+                }
+                run = instance;
+            }
+        }
+        return run;
+    }
+
+    public static File getReportFile(Context context) {
+        return new File(context.getFilesDir(), REPORT_FILE_NAME);
+    }
+
+    public synchronized void start(long alarmId, long triggerAtMillis) {
+        this.alarmId = alarmId;
+        this.triggerAtMillis = triggerAtMillis;
+        deliveredAtMillis = 0;
+        SharedPreferences.Editor editor = prefs.edit().clear()
+            .putBoolean("active", true)
+            .putLong("alarm_id", alarmId)
+            .putLong("trigger_at", triggerAtMillis);
+        for (int i = 0; i < stageTimes.length; i++) {
+            stageTimes[i] = 0;
+        }
+        editor.apply();
+        active = true;
+        mark(Stage.SCHEDULED);
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    // AlarmManager delivered the test alarm; also records wall clock time to measure delivery drift
+    public synchronized void markDelivered(long alarmId) {
+        if (!active || alarmId != this.alarmId) {
+            return;
+        }
+        deliveredAtMillis = System.currentTimeMillis();
+        prefs.edit().putLong("delivered_at", deliveredAtMillis).apply();
+        mark(Stage.DELIVERED);
+    }
+
+    public void mark(Stage stage) {
+        if (!active) {
+            return;
+        }
+        synchronized (this) {
+            if (stageTimes[stage.ordinal()] != 0) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtime();
+            stageTimes[stage.ordinal()] = now;
+            prefs.edit().putLong(stage.name(), now).apply();
+            if (stage == Stage.DISMISSED) {
+                finish();
+            }
+        }
+    }
+
+    private void finish() {
+        active = false;
+        prefs.edit().putBoolean("active", false).apply();
+        try {
+            writeReport();
+            LogFileWriter.logInfo(context, TAG, "Test run report written for alarm " + alarmId);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write test run report", e);
+        }
+    }
+
+    private void writeReport() throws IOException {
+        File reportFile = getReportFile(context);
+        boolean writeHeader = !reportFile.exists() || reportFile.length() == 0;
+        StringBuilder row = new StringBuilder();
+        if (writeHeader) {
+            row.append("time,device,sdk,version,delivery_drift_ms");
+            for (Stage stage : Stage.values()) {
+                if (stage.ordinal() > Stage.DELIVERED.ordinal()) {
+                    row.append(',').append(stage.name().toLowerCase(Locale.US)).append("_ms");
+                }
+            }
+            row.append('\n');
+        }
+
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        row.append(sdf.format(new Date())).append(',')
+            .append(Build.MANUFACTURER).append(' ').append(Build.MODEL).append(',')
+            .append(Build.VERSION.SDK_INT).append(',')
+            .append(getVersionName()).append(',')
+            .append(deliveredAtMillis != 0 ? deliveredAtMillis - triggerAtMillis : -1);
+
+        // Each stage is reported as the time since the previous stage that was reached, -1 if never reached
+        long previous = stageTimes[Stage.DELIVERED.ordinal()];
+        for (Stage stage : Stage.values()) {
+            if (stage.ordinal() <= Stage.DELIVERED.ordinal()) {
+                continue;
+            }
+            long time = stageTimes[stage.ordinal()];
+            if (time == 0 || previous == 0) {
+                row.append(",-1");
+            } else {
+                row.append(',').append(time - previous);
+                previous = time;
+            }
+        }
+        row.append('\n');
+
+        try (FileWriter writer = new FileWriter(reportFile, true)) {
+            writer.append(row.toString());
+        }
+    }
+
+    private String getVersionName() {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionName;
+        } catch (PackageManager.NameNotFoundException e) {
+            return "unknown";
+        }
+    }
+}
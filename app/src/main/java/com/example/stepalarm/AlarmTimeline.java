@@ -0,0 +1,221 @@
+package com.example.stepalarm;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.TextStyle;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Records when each stage of an alarm session happens, from the scheduled fire time to
+ * the release of the sound, on the monotonic elapsed-realtime clock. Every session that
+ * rings is appended as one TimelineRecord to a file in device-protected storage, and
+ * percentiles across sessions are computed from that file. Each record also goes into the
+ * SessionRollups, which answer per day, week, weekday and alarm questions without reading
+ * the records. Stages that AlarmTestRun also tracks are passed on to it.
+ */
+public final class AlarmTimeline {
+    private static final String TAG = "AlarmTimeline";
+    private static final String FILE_NAME = "alarm_timelines.bin";
+    private static final String ROLLUPS_FILE_NAME = "alarm_rollups.bin";
+    private static final int MAX_RECORDS = 512;
+    private static final double[] SUMMARY_PERCENTILES = {50, 90, 99};
+
+    // AlarmTestRun stage for each TimelineStage, null where it has none
+    private static final AlarmTestRun.Stage[] TEST_RUN_STAGES = new AlarmTestRun.Stage[TimelineStage.values().length];
+
+    static {
+        TEST_RUN_STAGES[TimelineStage.SOUND_STARTED.ordinal()] = AlarmTestRun.Stage.SOUND_STARTED;
+        TEST_RUN_STAGES[TimelineStage.FIRST_FRAME.ordinal()] = AlarmTestRun.Stage.ACTIVITY_FIRST_FRAME;
+        TEST_RUN_STAGES[TimelineStage.SENSOR_REGISTERED.ordinal()] = AlarmTestRun.Stage.SENSOR_REGISTERED;
+        TEST_RUN_STAGES[TimelineStage.FIRST_STEP.ordinal()] = AlarmTestRun.Stage.FIRST_STEP;
+        TEST_RUN_STAGES[TimelineStage.RELEASED.ordinal()] = AlarmTestRun.Stage.DISMISSED;
+    }
+
+    private static volatile AlarmTimeline instance;
+
+    private final Context context;
+    private final File file;
+    private final File rollupsFile;
+    // elapsedRealtime of each stage in the current session, 0 = not reached
+    private final long[] stageTimes = new long[TimelineStage.values().length];
+    private volatile boolean active;
+    private long alarmId;
+    private long receivedAtMillis;
+    private volatile int steps;
+
+    private AlarmTimeline(Context context) {
+        this.context = context;
+        file = DeviceStorage.file(context, FILE_NAME);
+        rollupsFile = DeviceStorage.file(context, ROLLUPS_FILE_NAME);
+    }
+
+    public static AlarmTimeline get(Context context) {
+        AlarmTimeline timeline = instance;
+        if (timeline == null) {
+            synchronized (AlarmTimeline.class) {
+                if (instance == null) {
+                    instance = new AlarmTimeline(context.getApplicationContext());
+                }
+                timeline = instance;
+            }
+        }
+        return timeline;
+    }
+
+    /**
+     * Starts the timeline of a delivered alarm. receivedElapsed is the elapsedRealtime taken
+     * on entering onReceive; scheduledAtMillis is the wall clock fire time, 0 if unknown.
+     */
+    public synchronized void begin(long alarmId, long scheduledAtMillis, long receivedElapsed) {
+        this.alarmId = alarmId;
+        // Both clocks read together, so the wall clock fire time can be placed on the monotonic one
+        long nowElapsed = SystemClock.elapsedRealtime();
+        receivedAtMillis = System.currentTimeMillis() - (nowElapsed - receivedElapsed);
+        for (int i = 0; i < stageTimes.length; i++) {
+            stageTimes[i] = 0;
+        }
+        steps = 0;
+        stageTimes[TimelineStage.RECEIVED.ordinal()] = receivedElapsed;
+        if (scheduledAtMillis > 0) {
+            stageTimes[TimelineStage.SCHEDULED.ordinal()] = receivedElapsed - (receivedAtMillis - scheduledAtMillis);
+        }
+        active = true;
+    }
+
+    // The alarm turned out not to ring, e.g. it was disabled; nothing is recorded
+    public synchronized void abandon() {
+        active = false;
+    }
+
+    // Steps counted so far in the current session
+    public void recordSteps(long count) {
+        steps = (int) count;
+    }
+
+    // Only the first mark of a stage counts; ignored outside a session
+    public void mark(TimelineStage stage) {
+        AlarmTestRun.Stage testRunStage = TEST_RUN_STAGES[stage.ordinal()];
+        if (testRunStage != null) {
+            AlarmTestRun.get(context).mark(testRunStage);
+        }
+        if (!active) {
+            return;
+        }
+        synchronized (this) {
+            if (!active || stageTimes[stage.ordinal()] != 0) {
+                return;
+            }
+            stageTimes[stage.ordinal()] = SystemClock.elapsedRealtime();
+            if (stage == TimelineStage.RELEASED) {
+                finish();
+            }
+        }
+    }
+
+    private void finish() {
+        active = false;
+        long received = stageTimes[TimelineStage.RECEIVED.ordinal()];
+        int[] offsets = new int[stageTimes.length];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = stageTimes[i] != 0 ? (int) (stageTimes[i] - received) : TimelineRecord.MISSING;
+        }
+        TimelineRecord record = new TimelineRecord(receivedAtMillis, alarmId, steps, offsets);
+        AppExecutors.diskIO().execute(() -> {
+            try {
+                TimelineRecord.append(file, record, MAX_RECORDS);
+                // Sessions stay in the day, week and weekday of the zone they were recorded in. Without a
+                // rollups file the newest MAX_RECORDS sessions the timeline still holds are all there is.
+                SessionRollups rollups = new SessionRollups(rollupsFile);
+                if (rollupsFile.exists()) {
+                    rollups.add(record, ZoneId.systemDefault());
+                } else {
+                    rollups.rebuild(loadRecords(context), ZoneId.systemDefault());
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to append alarm timeline", e);
+            }
+        });
+    }
+
+    // Totals per day, week, weekday and alarm; reads one bucket per query, but keep off the main thread
+    public static SessionRollups rollups(Context context) {
+        return new SessionRollups(DeviceStorage.file(context, ROLLUPS_FILE_NAME));
+    }
+
+    // Overall, this week, each of the last 7 days and each weekday
+    public static String rollupSummary(Context context) {
+        SessionRollups rollups = rollups(context);
+        SessionRollups.Rollup total = rollups.total();
+        if (total == null || total.getSessions() == 0) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder();
+        appendRollup(builder, "All time", total);
+        long today = LocalDate.now().toEpochDay();
+        appendRollup(builder, "This week", rollups.week(today));
+        for (int i = 0; i < 7; i++) {
+            LocalDate date = LocalDate.ofEpochDay(today - i);
+            appendRollup(builder, date.toString(), rollups.day(date.toEpochDay()));
+        }
+        for (DayOfWeek day : DayOfWeek.values()) {
+            appendRollup(builder, day.getDisplayName(TextStyle.FULL, Locale.US), rollups.weekday(day));
+        }
+        return builder.toString();
+    }
+
+    private static void appendRollup(StringBuilder builder, String label, SessionRollups.Rollup rollup) {
+        if (rollup == null || rollup.getSessions() == 0) {
+            return;
+        }
+        builder.append(String.format(Locale.US,
+            "%s: %d sessions, %d dismissed, %d missed, %d late, ring %d s mean / %d s max, %.0f steps/min\n",
+            label, rollup.getSessions(), rollup.getDismissed(), rollup.getMissed(), rollup.getLate(),
+            rollup.getMeanRingMillis() / 1000, rollup.getRingMaxMillis() / 1000, rollup.getStepsPerMinute()));
+    }
+
+    // Newest last; empty if nothing has been recorded. Reads the file, so keep off the main thread.
+    public static List<TimelineRecord> loadRecords(Context context) {
+        List<TimelineRecord> records = TimelineRecord.readAll(DeviceStorage.file(context, FILE_NAME));
+        return records != null ? records : Collections.emptyList();
+    }
+
+    // Percentiles (0 to 100) in ms of the time between two stages across all recorded sessions
+    public static long[] percentiles(Context context, TimelineStage from, TimelineStage to, double... percents) {
+        return TimelineRecord.percentiles(loadRecords(context), from, to, percents);
+    }
+
+    // p50/p90/p99 of each stage measured from the one before it, then end to end
+    public static String summary(Context context) {
+        List<TimelineRecord> records = loadRecords(context);
+        if (records.isEmpty()) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder();
+        builder.append(records.size()).append(" sessions, p50 / p90 / p99 ms\n");
+        TimelineStage[] stages = TimelineStage.values();
+        for (int i = 1; i < stages.length; i++) {
+            appendLine(builder, records, stages[i - 1], stages[i]);
+        }
+        appendLine(builder, records, TimelineStage.SCHEDULED, TimelineStage.TARGET_REACHED);
+        return builder.toString();
+    }
+
+    private static void appendLine(StringBuilder builder, List<TimelineRecord> records,
+                                   TimelineStage from, TimelineStage to) {
+        long[] values = TimelineRecord.percentiles(records, from, to, SUMMARY_PERCENTILES);
+        if (values.length == 0) {
+            return;
+        }
+        builder.append(String.format(Locale.US, "%s -> %s: %d / %d / %d\n",
+            from.name().toLowerCase(Locale.US), to.name().toLowerCase(Locale.US), values[0], values[1], values[2]));
+    }
+}
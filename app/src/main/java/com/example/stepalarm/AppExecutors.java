@@ -0,0 +1,39 @@
+package com.example.stepalarm;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shared executors for work that must stay off the main thread. Disk work runs on a
+ * single thread so that reads and edits issued from the UI keep their order.
+ */
+public final class AppExecutors {
+    private static final ExecutorService DISK_IO =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "AppDiskIO"));
+    private static volatile Executor mainThread;
+
+    private AppExecutors() {
+    }
+
+    public static Executor diskIO() {
+        return DISK_IO;
+    }
+
+    public static Executor mainThread() {
+        Executor executor = mainThread;
+        if (executor == null) {
+            synchronized (AppExecutors.class) {
+                if (mainThread == null) {
+                    Handler handler = new Handler(Looper.getMainLooper());
+                    mainThread = handler::post;
+                }
+                executor = mainThread;
+            }
+        }
+        return executor;
+    }
+}
@@ -1,19 +1,68 @@
 package com.example.stepalarm;
 
+import android.app.AlarmManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.util.Log;
 
+/**
+ * Re-arms alarms after a reboot, a clock change or a grant of the exact alarm permission.
+ * The receiver is direct-boot aware, so LOCKED_BOOT_COMPLETED re-arms from the
+ * device-protected alarm snapshot before the user unlocks; BOOT_COMPLETED follows once
+ * they do. The work runs off the main thread under goAsync() and the time it took is
+ * logged.
+ */
 public class BootReceiver extends BroadcastReceiver {
     private static final String TAG = "BootReceiver";
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
-            Log.d(TAG, "Boot completed, rescheduling alarms");
-            AlarmScheduler.rescheduleAllAlarms(context);
+        String action = intent.getAction();
+        if (action == null) {
+            return;
         }
+        PendingResult pendingResult = goAsync();
+        Context appContext = context.getApplicationContext();
+        long receivedAt = SystemClock.elapsedRealtime();
+        AppExecutors.diskIO().execute(() -> {
+            try {
+                handle(appContext, action, receivedAt);
+            } finally {
+                pendingResult.finish();
+            }
+        });
     }
-}
 
+    private static void handle(Context context, String action, long receivedAt) {
+        AlarmScheduler.ReconcileResult result;
+        if (Intent.ACTION_LOCKED_BOOT_COMPLETED.equals(action) || Intent.ACTION_BOOT_COMPLETED.equals(action)) {
+            Log.d(TAG, "Boot completed (" + action + "), rescheduling alarms");
+            result = AlarmScheduler.rescheduleAfterBoot(context);
+        } else if (Intent.ACTION_TIME_CHANGED.equals(action) || Intent.ACTION_TIMEZONE_CHANGED.equals(action)) {
+            // Wall clock fire times moved; only the entries whose time changed are re-armed
+            Log.d(TAG, "Clock changed, reconciling alarms");
+            if (Intent.ACTION_TIMEZONE_CHANGED.equals(action)) {
+                NextFireTimeCalculator.resetSystemDefault();
+            }
+            result = AlarmScheduler.rescheduleAllAlarms(context);
+        } else if (AlarmManager.ACTION_SCHEDULE_EXACT_ALARM_PERMISSION_STATE_CHANGED.equals(action)) {
+            // Exact alarms were allowed again; the reconcile re-arms everything with the configured tier
+            Log.d(TAG, "Exact alarm permission granted, reconciling alarms");
+            result = AlarmScheduler.reconcile(context);
+        } else {
+            return;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - receivedAt;
+        String message = action + " handled in " + elapsed + " ms (" + SystemClock.elapsedRealtime()
+                + " ms since boot): " + result.getArmed() + " armed, " + result.getCancelled() + " cancelled, "
+                + result.getUnchanged() + " unchanged";
+        if (DeviceStorage.isUserUnlocked(context)) {
+            LogFileWriter.logInfo(context, TAG, message);
+        } else {
+            // The log file is in credential-encrypted storage
+            Log.i(TAG, message);
+        }
+    }
+}
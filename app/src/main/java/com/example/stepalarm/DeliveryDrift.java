@@ -0,0 +1,77 @@
+package com.example.stepalarm;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Locale;
+
+/**
+ * Histogram of how late AlarmManager delivers alarms, kept per DeliveryTier. AlarmReceiver
+ * records every trigger as actual minus scheduled fire time. Counts are kept in
+ * device-protected preferences so they add up across processes and reboots.
+ */
+public final class DeliveryDrift {
+    private static final String TAG = "DeliveryDrift";
+    private static final String PREFS_NAME = "delivery_drift";
+
+    // Upper bound of each bucket in ms; one more open-ended bucket follows, and early deliveries count as < 1 s
+    private static final long[] BUCKET_LIMITS_MS = {1_000, 5_000, 15_000, 60_000, 5 * 60_000, 15 * 60_000};
+    private static final String[] BUCKET_LABELS = {"<1s", "1-5s", "5-15s", "15-60s", "1-5m", "5-15m", ">15m"};
+
+    private DeliveryDrift() {
+    }
+
+    // tier and scheduledAt come from AlarmScheduler.Trigger; triggers without them are ignored
+    public static synchronized void record(Context context, AlarmScheduler.DeliveryTier tier, long scheduledAt,
+                                           long deliveredAt) {
+        if (tier == null || scheduledAt <= 0) {
+            return;
+        }
+        long drift = deliveredAt - scheduledAt;
+        SharedPreferences prefs = DeviceStorage.preferences(context, PREFS_NAME);
+        String prefix = tier.name() + "_";
+        String bucketKey = prefix + bucketOf(drift);
+        prefs.edit()
+            .putLong(bucketKey, prefs.getLong(bucketKey, 0) + 1)
+            .putLong(prefix + "count", prefs.getLong(prefix + "count", 0) + 1)
+            .putLong(prefix + "sum", prefs.getLong(prefix + "sum", 0) + drift)
+            .putLong(prefix + "max", Math.max(prefs.getLong(prefix + "max", Long.MIN_VALUE), drift))
+            .apply();
+        LogFileWriter.logInfo(context, TAG, "Delivered " + drift + " ms after the scheduled time via " + tier);
+    }
+
+    // One line per tier that has deliveries: count, mean, max and the bucket counts
+    public static String summary(Context context) {
+        SharedPreferences prefs = DeviceStorage.preferences(context, PREFS_NAME);
+        StringBuilder builder = new StringBuilder();
+        for (AlarmScheduler.DeliveryTier tier : AlarmScheduler.DeliveryTier.values()) {
+            String prefix = tier.name() + "_";
+            long count = prefs.getLong(prefix + "count", 0);
+            if (count == 0) {
+                continue;
+            }
+            builder.append(String.format(Locale.US, "%s: %d alarms, mean %d ms, max %d ms\n",
+                tier, count, prefs.getLong(prefix + "sum", 0) / count, prefs.getLong(prefix + "max", 0)));
+            for (int bucket = 0; bucket < BUCKET_LABELS.length; bucket++) {
+                long bucketCount = prefs.getLong(prefix + bucket, 0);
+                if (bucketCount > 0) {
+                    builder.append("  ").append(BUCKET_LABELS[bucket]).append(": ").append(bucketCount).append('\n');
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    public static void clear(Context context) {
+        DeviceStorage.preferences(context, PREFS_NAME).edit().clear().apply();
+    }
+
+    private static int bucketOf(long driftMs) {
+        for (int i = 0; i < BUCKET_LIMITS_MS.length; i++) {
+            if (driftMs < BUCKET_LIMITS_MS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_LIMITS_MS.length;
+    }
+}
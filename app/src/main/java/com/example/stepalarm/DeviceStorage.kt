@@ -0,0 +1,58 @@
+package com.example.stepalarm
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.os.UserManager
+import android.util.Log
+import java.io.File
+
+/**
+ * Device-protected storage for the state the alarm path needs before the user unlocks
+ * after a reboot: the alarm snapshot, the schedule ledger, the scheduler settings and
+ * the ringing session. Files and preferences that still sit in credential-encrypted
+ * storage from an older version are moved over the first time they are asked for
+ * while the user is unlocked.
+ */
+object DeviceStorage {
+    private const val TAG = "DeviceStorage"
+    
+    private val migratedPreferences = HashSet<String>()
+    
+    @JvmStatic
+    fun context(context: Context): Context {
+        val app = context.applicationContext ?: context
+        return if (app.isDeviceProtectedStorage) app else app.createDeviceProtectedStorageContext()
+    }
+    
+    @JvmStatic
+    fun isUserUnlocked(context: Context): Boolean {
+        val userManager = context.getSystemService(Context.USER_SERVICE) as UserManager?
+        return userManager?.isUserUnlocked ?: true
+    }
+    
+    @JvmStatic
+    fun file(context: Context, name: String): File {
+        val target = File(context(context).filesDir, name)
+        if (!target.exists() && isUserUnlocked(context)) {
+            val legacy = File(context.applicationContext.filesDir, name)
+            if (legacy.exists() && !legacy.renameTo(target)) {
+                Log.w(TAG, "Could not move $name to device-protected storage")
+            }
+        }
+        return target
+    }
+    
+    @JvmStatic
+    fun preferences(context: Context, name: String): SharedPreferences {
+        val storage = context(context)
+        synchronized(migratedPreferences) {
+            if (!migratedPreferences.contains(name) && isUserUnlocked(context)) {
+                if (!storage.moveSharedPreferencesFrom(context.applicationContext, name)) {
+                    Log.w(TAG, "Could not move preferences $name to device-protected storage")
+                }
+                migratedPreferences.add(name)
+            }
+        }
+        return storage.getSharedPreferences(name, Context.MODE_PRIVATE)
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.stepalarm;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process replacement for the broadcasts and service intents we used to pass
+ * internal signals between components. Subscriber lists are copy-on-write, so
+ * posting never takes a lock.
+ */
+public final class EventBus {
+    private static final String TAG = "EventBus";
+    private static final EventBus DEFAULT = new EventBus();
+
+    public enum ThreadMode {
+        POSTING,    // Deliver on the thread that called post()
+        MAIN,       // Deliver on the main looper (directly if already there)
+        BACKGROUND  // Deliver on the bus' single background thread
+    }
+
+    public interface Subscriber<T> {
+        void onEvent(T event);
+    }
+
+    public final class Subscription {
+        private final Class<?> type;
+        private final ThreadMode mode;
+        private final Subscriber<Object> subscriber;
+
+        private Subscription(Class<?> type, ThreadMode mode, Subscriber<Object> subscriber) {
+            this.type = type;
+            this.mode = mode;
+            this.subscriber = subscriber;
+        }
+
+        public void unsubscribe() {
+            CopyOnWriteArrayList<Subscription> list = subscribers.get(type);
+            if (list != null) {
+                list.remove(this);
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<Class<?>, CopyOnWriteArrayList<Subscription>> subscribers =
+            new ConcurrentHashMap<>();
+    private volatile Handler mainHandler;
+    private volatile ExecutorService background;
+
+    public static EventBus getDefault() {
+        return DEFAULT;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> Subscription subscribe(Class<T> type, ThreadMode mode, Subscriber<? super T> subscriber) {
+        CopyOnWriteArrayList<Subscription> list = subscribers.get(type);
+        if (list == null) {
+            CopyOnWriteArrayList<Subscription> created = new CopyOnWriteArrayList<>();
+            list = subscribers.putIfAbsent(type, created);
+            if (list == null) {
+                list = created;
+            }
+        }
+        Subscription subscription = new Subscription(type, mode, (Subscriber<Object>) subscriber);
+        list.add(subscription);
+        return subscription;
+    }
+
+    public void post(Object event) {
+        CopyOnWriteArrayList<Subscription> list = subscribers.get(event.getClass());
+        if (list == null) {
+            return;
+        }
+        for (Subscription subscription : list) {
+            dispatch(subscription, event);
+        }
+    }
+
+    private void dispatch(final Subscription subscription, final Object event) {
+        switch (subscription.mode) {
+            case MAIN:
+                if (Looper.myLooper() == Looper.getMainLooper()) {
+                    deliver(subscription, event);
+                } else {
+                    getMainHandler().post(() -> deliver(subscription, event));
+                }
+                break;
+            case BACKGROUND:
+                getBackground().execute(() -> deliver(subscription, event));
+                break;
+            default:
+                deliver(subscription, event);
+                break;
+        }
+    }
+
+    private void deliver(Subscription subscription, Object event) {
+        try {
+            subscription.subscriber.onEvent(event);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Subscriber for " + event.getClass().getSimpleName() + " failed", e);
+        }
+    }
+
+    private Handler getMainHandler() {
+        Handler handler = mainHandler;
+        if (handler == null) {
+            synchronized (this) {
+                if (mainHandler == null) {
+                    mainHandler = new Handler(Looper.getMainLooper());
+                }
+                handler = mainHandler;
+            }
+        }
+        return handler;
+    }
+
+    private ExecutorService getBackground() {
+        ExecutorService executor = background;
+        if (executor == null) {
+            synchronized (this) {
+                if (background == null) {
+                    background = Executors.newSingleThreadExecutor(r -> new Thread(r, "EventBus"));
+                }
+                executor = background;
+            }
+        }
+        return executor;
+    }
+}
@@ -10,11 +10,14 @@ import java.io.StringWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class LogFileWriter {
     private static final String TAG = "LogFileWriter";
     private static final String LOG_FILE_NAME = "step_alarm_logs.txt";
     private static final int MAX_LOG_FILE_SIZE = 5 * 1024 * 1024; // 5MB
+    // Writes happen on the caller's thread, so this is how many threads are queued on the file
+    private static final AtomicInteger writesInFlight = new AtomicInteger();
     
     public static void log(Context context, String level, String tag, String message) {
         log(context, level, tag, message, null);
@@ -59,9 +62,14 @@ public class LogFileWriter {
             }
             
             // Write to file
+            Tracing.setCounter("log_writes_in_flight", writesInFlight.incrementAndGet());
+            Tracing.beginSection("LogFileWriter.write");
             try (FileWriter writer = new FileWriter(logFile, true)) {
                 writer.append(logEntry.toString());
                 writer.flush();
+            } finally {
+                Tracing.endSection();
+                Tracing.setCounter("log_writes_in_flight", writesInFlight.decrementAndGet());
             }
         } catch (IOException e) {
             Log.e(TAG, "Failed to write to log file", e);
@@ -0,0 +1,95 @@
+package com.example.stepalarm
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Histogram of non-negative longs with the bucket layout of HdrHistogram: values below
+ * 2^(SUB_BUCKET_BITS + 1) get a bucket each, and every power of two above that is split
+ * into 2^SUB_BUCKET_BITS buckets, so any value lands in a bucket at most ~3% wide. record()
+ * neither locks nor allocates, so it can run on the sensor callback thread while another
+ * thread reads; a reader racing a writer may see the counts one or two values behind.
+ */
+class LogLinearHistogram(maxValue: Long) {
+    companion object {
+        private const val SUB_BUCKET_BITS = 5
+        private const val SUB_BUCKET_COUNT = 1 shl SUB_BUCKET_BITS
+        
+        // Bucket of a value no larger than the highest trackable one
+        private fun bucketOf(value: Long): Int {
+            val shift = maxOf(0, 63 - java.lang.Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS)
+            return (shift shl SUB_BUCKET_BITS) + (value ushr shift).toInt()
+        }
+        
+        // Largest value that falls into the bucket
+        private fun highestValueOf(bucket: Int): Long {
+            if (bucket < 2 * SUB_BUCKET_COUNT) {
+                return bucket.toLong()
+            }
+            val shift = (bucket ushr SUB_BUCKET_BITS) - 1
+            val subBucket = (bucket - (shift shl SUB_BUCKET_BITS)).toLong()
+            return ((subBucket + 1) shl shift) - 1
+        }
+    }
+    
+    // Larger values are counted as this one
+    val highestTrackableValue: Long = maxValue.coerceAtLeast(2L * SUB_BUCKET_COUNT - 1)
+    
+    private val counts = AtomicLongArray(bucketOf(highestTrackableValue) + 1)
+    private val totalCount = AtomicLong()
+    private val totalSum = AtomicLong()
+    private val maxRecorded = AtomicLong()
+    
+    val count: Long get() = totalCount.get()
+    
+    val max: Long get() = maxRecorded.get()
+    
+    val mean: Long get() = totalCount.get().let { if (it == 0L) 0L else totalSum.get() / it }
+    
+    // Negative values are counted as 0
+    fun record(value: Long) {
+        val clamped = value.coerceIn(0, highestTrackableValue)
+        counts.incrementAndGet(bucketOf(clamped))
+        totalSum.addAndGet(clamped)
+        totalCount.incrementAndGet()
+        var max = maxRecorded.get()
+        while (clamped > max && !maxRecorded.compareAndSet(max, clamped)) {
+            max = maxRecorded.get()
+        }
+    }
+    
+    /**
+     * Value at the percentile (0 to 100) by nearest rank, reported as the top of its bucket
+     * but never above the largest value recorded. 0 when nothing has been recorded.
+     */
+    fun valueAtPercentile(percent: Double): Long {
+        val total = totalCount.get()
+        if (total == 0L) {
+            return 0
+        }
+        val rank = Math.ceil(percent / 100.0 * total).toLong().coerceIn(1, total)
+        var seen = 0L
+        for (bucket in 0 until counts.length()) {
+            seen += counts.get(bucket)
+            if (seen >= rank) {
+                return minOf(highestValueOf(bucket), maxRecorded.get())
+            }
+        }
+        return maxRecorded.get()
+    }
+    
+    // Not atomic with concurrent record() calls; call it between sessions
+    fun reset() {
+        for (bucket in 0 until counts.length()) {
+            counts.set(bucket, 0)
+        }
+        totalCount.set(0)
+        totalSum.set(0)
+        maxRecorded.set(0)
+    }
+    
+    // "n=… mean=… p50=… p90=… p99=… max=…" followed by the unit
+    fun describe(unit: String): String =
+        "n=$count mean=$mean p50=${valueAtPercentile(50.0)} p90=${valueAtPercentile(90.0)} " +
+            "p99=${valueAtPercentile(99.0)} max=$max $unit"
+}
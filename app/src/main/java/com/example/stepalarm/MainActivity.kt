@@ -7,8 +7,10 @@ import android.net.Uri
 import android.os.Build
 import android.os.Bundle
 import android.provider.Settings
+import android.text.InputType
 import android.view.Menu
 import android.view.MenuItem
+import android.widget.EditText
 import android.widget.Toast
 import androidx.activity.result.contract.ActivityResultContracts
 import androidx.appcompat.app.AlertDialog
@@ -19,18 +21,18 @@ import androidx.recyclerview.widget.LinearLayoutManager
 import androidx.recyclerview.widget.RecyclerView
 import com.google.android.material.floatingactionbutton.FloatingActionButton
 import java.io.File
+import java.util.Calendar
 
 class MainActivity : AppCompatActivity() {
+    companion object {
+        private const val DEFAULT_TEST_ALARM_DELAY_SECONDS = 30
+    }
+
     private lateinit var alarmsRecyclerView: RecyclerView
     private lateinit var addAlarmButton: FloatingActionButton
     private lateinit var alarmAdapter: AlarmAdapter
     private lateinit var alarmDatabase: AlarmDatabase
-
-    private val addAlarmLauncher = registerForActivityResult(ActivityResultContracts.StartActivityForResult()) { result ->
-        if (result.resultCode == RESULT_OK) {
-            loadAlarms()
-        }
-    }
+    private var alarmsSubscription: EventBus.Subscription? = null
 
     private val overlayPermissionLauncher = registerForActivityResult(
         ActivityResultContracts.StartActivityForResult()
@@ -58,13 +60,13 @@ class MainActivity : AppCompatActivity() {
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.activity_main)
+        StartupTiming.watchFirstFrame(this)
 
         alarmDatabase = AlarmDatabase(this)
         alarmsRecyclerView = findViewById(R.id.alarmsRecyclerView)
         addAlarmButton = findViewById(R.id.addAlarmButton)
 
         alarmAdapter = AlarmAdapter(
-            alarms = emptyList(),
             onToggleEnabled = { alarm ->
                 toggleAlarm(alarm)
             },
@@ -78,7 +80,12 @@ class MainActivity : AppCompatActivity() {
 
         addAlarmButton.setOnClickListener {
             val intent = Intent(this, AddAlarmActivity::class.java)
-            addAlarmLauncher.launch(intent)
+            startActivity(intent)
+        }
+
+        // Catch alarms the system dropped, e.g. after a force stop, which sends no broadcast
+        AppExecutors.diskIO().execute {
+            AlarmScheduler.verifyLedger(this)
         }
 
         // Check for required permissions
@@ -86,10 +93,15 @@ class MainActivity : AppCompatActivity() {
         checkActivityRecognitionPermission()
 
         loadAlarms()
+        // Reload only when something actually changed, including edits made by AlarmReceiver
+        alarmsSubscription = AlarmDatabase.observe(EventBus.ThreadMode.MAIN) {
+            loadAlarms()
+        }
     }
 
     override fun onCreateOptionsMenu(menu: Menu?): Boolean {
         menuInflater.inflate(R.menu.main_menu, menu)
+        menu?.findItem(R.id.next_alarm_only)?.isChecked = AlarmScheduler.isNextAlarmOnly(this)
         return true
     }
 
@@ -99,6 +111,38 @@ class MainActivity : AppCompatActivity() {
                 viewLogs()
                 true
             }
+            R.id.run_test_alarm -> {
+                showTestAlarmDialog()
+                true
+            }
+            R.id.view_test_reports -> {
+                viewTestReports()
+                true
+            }
+            R.id.next_alarm_only -> {
+                val enabled = !item.isChecked
+                item.isChecked = enabled
+                AppExecutors.diskIO().execute {
+                    AlarmScheduler.setNextAlarmOnly(this, enabled)
+                }
+                true
+            }
+            R.id.delivery_tier -> {
+                showDeliveryTierDialog()
+                true
+            }
+            R.id.view_delivery_drift -> {
+                viewDeliveryDrift()
+                true
+            }
+            R.id.view_alarm_latency -> {
+                viewAlarmLatency()
+                true
+            }
+            R.id.view_alarm_stats -> {
+                viewAlarmStats()
+                true
+            }
             else -> super.onOptionsItemSelected(item)
         }
     }
@@ -113,7 +157,7 @@ class MainActivity : AppCompatActivity() {
                     .setMessage(logContent.takeLast(5000)) // Show last 5000 characters
                     .setPositiveButton("OK", null)
                     .setNeutralButton("Share") { _, _ ->
-                        shareLogFile(logFile)
+                        shareFile(logFile, "text/plain", "Step Alarm Logs")
                     }
                     .show()
             } else {
@@ -124,22 +168,158 @@ class MainActivity : AppCompatActivity() {
         }
     }
 
-    private fun shareLogFile(logFile: File) {
+    private fun shareFile(file: File, mimeType: String, subject: String) {
         try {
             val uri = FileProvider.getUriForFile(
                 this,
                 "${packageName}.fileprovider",
-                logFile
+                file
             )
             val intent = Intent(Intent.ACTION_SEND).apply {
-                type = "text/plain"
+                type = mimeType
                 putExtra(Intent.EXTRA_STREAM, uri)
-                putExtra(Intent.EXTRA_SUBJECT, "Step Alarm Logs")
+                putExtra(Intent.EXTRA_SUBJECT, subject)
                 addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION)
             }
-            startActivity(Intent.createChooser(intent, "Share logs"))
+            startActivity(Intent.createChooser(intent, "Share $subject"))
+        } catch (e: Exception) {
+            Toast.makeText(this, "Error sharing file: ${e.message}", Toast.LENGTH_SHORT).show()
+        }
+    }
+
+    private fun showTestAlarmDialog() {
+        val input = EditText(this).apply {
+            inputType = InputType.TYPE_CLASS_NUMBER
+            setText(DEFAULT_TEST_ALARM_DELAY_SECONDS.toString())
+        }
+        AlertDialog.Builder(this)
+            .setTitle("Run Test Alarm")
+            .setMessage("Seconds until the test alarm fires. Walk the steps to dismiss it as usual; a timing report is saved afterwards.")
+            .setView(input)
+            .setPositiveButton("Start") { _, _ ->
+                val seconds = input.text.toString().toIntOrNull() ?: DEFAULT_TEST_ALARM_DELAY_SECONDS
+                runTestAlarm(seconds.coerceAtLeast(1))
+            }
+            .setNegativeButton("Cancel", null)
+            .show()
+    }
+
+    private fun runTestAlarm(delaySeconds: Int) {
+        val triggerAtMillis = System.currentTimeMillis() + delaySeconds * 1000L
+        val calendar = Calendar.getInstance().apply { timeInMillis = triggerAtMillis }
+        
+        // A real one-time alarm, so the receiver goes through its normal lookup and deletes it afterwards
+        val alarm = Alarm(
+            id = 0L,
+            hour = calendar.get(Calendar.HOUR_OF_DAY),
+            minute = calendar.get(Calendar.MINUTE),
+            isRepeating = false,
+            repeatDays = emptySet(),
+            isEnabled = true
+        )
+        AppExecutors.diskIO().execute {
+            // The save arms the alarm for its minute and scheduleTestAlarm swaps that for the test time in the same batch
+            AlarmScheduler.batch(this, "runTestAlarm") {
+                val savedId = alarmDatabase.saveAlarm(alarm)
+                AlarmTestRun.get(this).start(savedId, triggerAtMillis)
+                AlarmScheduler.scheduleTestAlarm(this, alarm.copy(id = savedId), triggerAtMillis)
+            }
+        }
+        Toast.makeText(this, "Test alarm in $delaySeconds seconds", Toast.LENGTH_SHORT).show()
+    }
+
+    private fun viewTestReports() {
+        val reportFile = AlarmTestRun.getReportFile(this)
+        if (!reportFile.exists() || reportFile.length() == 0L) {
+            Toast.makeText(this, "No test reports yet", Toast.LENGTH_SHORT).show()
+            return
+        }
+        try {
+            AlertDialog.Builder(this)
+                .setTitle("Test Reports")
+                .setMessage(reportFile.readText().takeLast(5000))
+                .setPositiveButton("OK", null)
+                .setNeutralButton("Share") { _, _ ->
+                    shareFile(reportFile, "text/csv", "Step Alarm Test Reports")
+                }
+                .show()
         } catch (e: Exception) {
-            Toast.makeText(this, "Error sharing logs: ${e.message}", Toast.LENGTH_SHORT).show()
+            Toast.makeText(this, "Error reading test reports: ${e.message}", Toast.LENGTH_LONG).show()
+        }
+    }
+
+    private fun showDeliveryTierDialog() {
+        val tiers = AlarmScheduler.DeliveryTier.values()
+        val labels = arrayOf(
+            "Alarm clock (shown in status bar, never deferred)",
+            "Exact (may be deferred while idle)",
+            "Inexact (up to 5 minutes late)"
+        )
+        val current = AlarmScheduler.getDeliveryTier(this)
+        val effective = AlarmScheduler.effectiveDeliveryTier(this)
+        AlertDialog.Builder(this)
+            .setTitle(if (effective != current) "Alarm Delivery (exact alarms not allowed)" else "Alarm Delivery")
+            .setSingleChoiceItems(labels, current.ordinal) { dialog, which ->
+                AppExecutors.diskIO().execute {
+                    AlarmScheduler.setDeliveryTier(this, tiers[which])
+                }
+                dialog.dismiss()
+            }
+            .setNegativeButton("Cancel", null)
+            .show()
+    }
+
+    private fun viewDeliveryDrift() {
+        AppExecutors.diskIO().execute {
+            val summary = DeliveryDrift.summary(this)
+            AppExecutors.mainThread().execute {
+                if (summary.isEmpty()) {
+                    Toast.makeText(this, "No alarms delivered yet", Toast.LENGTH_SHORT).show()
+                } else {
+                    AlertDialog.Builder(this)
+                        .setTitle("Delivery Drift")
+                        .setMessage(summary)
+                        .setPositiveButton("OK", null)
+                        .setNeutralButton("Reset") { _, _ ->
+                            DeliveryDrift.clear(this)
+                        }
+                        .show()
+                }
+            }
+        }
+    }
+
+    private fun viewAlarmLatency() {
+        AppExecutors.diskIO().execute {
+            val summary = AlarmTimeline.summary(this)
+            AppExecutors.mainThread().execute {
+                if (summary.isEmpty()) {
+                    Toast.makeText(this, "No alarm sessions recorded yet", Toast.LENGTH_SHORT).show()
+                } else {
+                    AlertDialog.Builder(this)
+                        .setTitle("Alarm Latency")
+                        .setMessage(summary)
+                        .setPositiveButton("OK", null)
+                        .show()
+                }
+            }
+        }
+    }
+
+    private fun viewAlarmStats() {
+        AppExecutors.diskIO().execute {
+            val summary = AlarmTimeline.rollupSummary(this)
+            AppExecutors.mainThread().execute {
+                if (summary.isEmpty()) {
+                    Toast.makeText(this, "No alarm sessions recorded yet", Toast.LENGTH_SHORT).show()
+                } else {
+                    AlertDialog.Builder(this)
+                        .setTitle("Alarm Stats")
+                        .setMessage(summary)
+                        .setPositiveButton("OK", null)
+                        .show()
+                }
+            }
         }
     }
 
@@ -209,29 +389,46 @@ class MainActivity : AppCompatActivity() {
         // Re-check permissions in case they were revoked
         checkOverlayPermission()
         checkActivityRecognitionPermission()
-        loadAlarms()
+    }
+
+    override fun onDestroy() {
+        super.onDestroy()
+        alarmsSubscription?.unsubscribe()
+        alarmsSubscription = null
     }
 
     private fun loadAlarms() {
-        val alarms = alarmDatabase.getAllAlarms().sortedBy { it.hour * 60 + it.minute }
-        alarmAdapter.updateAlarms(alarms)
+        // The first read in a cold process decodes the snapshot file, so keep it off the main thread.
+        // The table is already sorted by time of day and the adapter diffs it in the background too.
+        AppExecutors.diskIO().execute {
+            val rows = alarmDatabase.getAlarmTable().toRows()
+            runOnUiThread {
+                if (!isDestroyed) {
+                    alarmAdapter.submitList(rows) { StartupTiming.contentReady(this) }
+                }
+            }
+            // Waits for the pending SQLite writes, so it comes after the list
+            val next = alarmDatabase.getNextAlarm()
+            runOnUiThread {
+                if (!isDestroyed) {
+                    supportActionBar?.subtitle = next?.let { getString(R.string.next_alarm, it.getTimeString()) }
+                }
+            }
+        }
     }
 
+    // Edits re-arm AlarmManager through the scheduler observer, which is a binder call per alarm
     private fun toggleAlarm(alarm: Alarm) {
-        val updatedAlarm = alarmDatabase.toggleAlarm(alarm.id) ?: return
-        
-        if (updatedAlarm.isEnabled) {
-            AlarmScheduler.scheduleAlarm(this, updatedAlarm)
-        } else {
-            AlarmScheduler.cancelAlarm(this, alarm)
+        AppExecutors.diskIO().execute {
+            alarmDatabase.edit {
+                get(alarm.id)?.let { update(it.copy(isEnabled = !it.isEnabled)) }
+            }
         }
-        
-        loadAlarms()
     }
 
     private fun deleteAlarm(alarm: Alarm) {
-        AlarmScheduler.cancelAlarm(this, alarm)
-        alarmDatabase.deleteAlarm(alarm.id)
-        loadAlarms()
+        AppExecutors.diskIO().execute {
+            alarmDatabase.edit { delete(alarm.id) }
+        }
     }
 } 
\ No newline at end of file
@@ -0,0 +1,141 @@
+package com.example.stepalarm
+
+import java.time.Instant
+import java.time.ZoneId
+import java.time.zone.ZoneRules
+
+/**
+ * Next fire time of an alarm given as minute of day plus a 7-bit day mask (bit
+ * Calendar.DAY_OF_WEEK - 1, the same packing as Alarm.getRepeatDayMask()).
+ *
+ * Works on epoch seconds and day numbers, and keeps the UTC offset of the current
+ * span between two zone transitions cached, so a call allocates nothing unless it
+ * crosses into another span. Local times are resolved the way java.time resolves them:
+ * a time skipped by a DST gap moves forward by the length of the gap, and a time that
+ * occurs twice in an overlap fires once, at the earlier offset.
+ */
+class NextFireTimeCalculator(zone: ZoneId) {
+    private val rules: ZoneRules = zone.rules
+    
+    // Instants [start, end) in epoch seconds that all have the same offset
+    private class Span(val start: Long, val end: Long, val offsetSeconds: Int)
+    
+    @Volatile
+    private var span = Span(0, 0, 0)
+    
+    companion object {
+        const val ALL_DAYS = 0x7F
+        private const val SECONDS_PER_DAY = 86400L
+        
+        @Volatile
+        private var systemDefault: NextFireTimeCalculator? = null
+        
+        @JvmStatic
+        fun systemDefault(): NextFireTimeCalculator {
+            return systemDefault ?: NextFireTimeCalculator(ZoneId.systemDefault()).also { systemDefault = it }
+        }
+        
+        // The device time zone changed; the next call picks up the new one
+        @JvmStatic
+        fun resetSystemDefault() {
+            systemDefault = null
+        }
+        
+        // Day of week of an epoch day as Calendar.DAY_OF_WEEK - 1 (Sunday = 0); 1970-01-01 was a Thursday
+        @JvmStatic
+        fun dayOfWeekIndex(epochDay: Long): Int = Math.floorMod(epochDay + 4, 7L).toInt()
+        
+        // Days from dayIndex to the first day in the mask, counting dayIndex itself as 0
+        @JvmStatic
+        fun daysUntil(dayMask: Int, dayIndex: Int): Int {
+            val rotated = ((dayMask ushr dayIndex) or (dayMask shl (7 - dayIndex))) and ALL_DAYS
+            return Integer.numberOfTrailingZeros(rotated)
+        }
+    }
+    
+    /**
+     * Earliest fire time strictly after afterMillis, in epoch milliseconds, or -1 if the
+     * mask has no days. One-time alarms and every-day alarms pass ALL_DAYS.
+     */
+    fun nextFireTime(minuteOfDay: Int, dayMask: Int, afterMillis: Long): Long {
+        val mask = dayMask and ALL_DAYS
+        if (mask == 0) {
+            return -1
+        }
+        // Start a day early: a time in a gap of a day or more (Pacific/Apia, 2011) lands on the next day
+        var epochDay = localEpochDay(afterMillis) - 1
+        epochDay += daysUntil(mask, dayOfWeekIndex(epochDay))
+        var fireMillis = fireTimeOnDay(epochDay, minuteOfDay)
+        // Not after the instant yet; at most a few rounds
+        while (fireMillis <= afterMillis) {
+            epochDay += 1
+            epochDay += daysUntil(mask, dayOfWeekIndex(epochDay))
+            fireMillis = fireTimeOnDay(epochDay, minuteOfDay)
+        }
+        return fireMillis
+    }
+    
+    fun nextFireTime(hour: Int, minute: Int, dayMask: Int, afterMillis: Long): Long {
+        return nextFireTime(hour * 60 + minute, dayMask, afterMillis)
+    }
+    
+    // Local calendar day of an instant, in days since 1970-01-01
+    fun localEpochDay(millis: Long): Long {
+        val seconds = Math.floorDiv(millis, 1000L)
+        return Math.floorDiv(seconds + offsetAt(seconds), SECONDS_PER_DAY)
+    }
+    
+    // Local minute of day of an instant, 0 to 1439
+    fun localMinuteOfDay(millis: Long): Int {
+        val seconds = Math.floorDiv(millis, 1000L)
+        return Math.floorMod(Math.floorDiv(seconds + offsetAt(seconds), 60L), 1440L).toInt()
+    }
+    
+    // Instant in epoch milliseconds at which minuteOfDay local time happens on the given local day
+    fun fireTimeOnDay(epochDay: Long, minuteOfDay: Int): Long {
+        return resolve(epochDay * SECONDS_PER_DAY + minuteOfDay * 60L) * 1000L
+    }
+    
+    // Epoch second of a local date-time given in seconds since the local epoch
+    private fun resolve(localSeconds: Long): Long {
+        // Offsets a day either side of the approximate instant; equal unless a transition is near
+        val approximate = localSeconds - offsetAt(localSeconds)
+        val earlier = offsetAt(approximate - SECONDS_PER_DAY)
+        val later = offsetAt(approximate + SECONDS_PER_DAY)
+        if (earlier == later) {
+            return localSeconds - earlier
+        }
+        val withEarlier = localSeconds - earlier
+        val withLater = localSeconds - later
+        val earlierValid = offsetAt(withEarlier) == earlier
+        val laterValid = offsetAt(withLater) == later
+        return when {
+            earlierValid && laterValid -> minOf(withEarlier, withLater) // Overlap: first occurrence
+            earlierValid -> withEarlier
+            laterValid -> withLater
+            else -> withEarlier // Gap: moved forward by the length of the gap
+        }
+    }
+    
+    private fun offsetAt(epochSecond: Long): Int {
+        val current = span
+        if (epochSecond >= current.start && epochSecond < current.end) {
+            return current.offsetSeconds
+        }
+        return loadSpan(epochSecond).offsetSeconds
+    }
+    
+    private fun loadSpan(epochSecond: Long): Span {
+        val instant = Instant.ofEpochSecond(epochSecond)
+        // previousTransition() is strictly before its argument, so ask from one second later to include epochSecond
+        val previous = rules.previousTransition(Instant.ofEpochSecond(epochSecond + 1))
+        val next = rules.nextTransition(instant)
+        val loaded = Span(
+            previous?.toEpochSecond() ?: Long.MIN_VALUE,
+            next?.toEpochSecond() ?: Long.MAX_VALUE,
+            rules.getOffset(instant).totalSeconds
+        )
+        span = loaded
+        return loaded
+    }
+}
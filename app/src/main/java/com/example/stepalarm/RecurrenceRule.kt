@@ -0,0 +1,280 @@
+package com.example.stepalarm
+
+import java.util.Arrays
+
+/**
+ * Recurrence for alarms that a set of weekdays cannot express: every N days, the Nth
+ * weekday of the month, rotating on/off shift patterns and weekdays with exceptions.
+ * Any rule can carry skip dates. Days are epoch days (days since 1970-01-01) in local
+ * time; the time of day stays on the Alarm.
+ *
+ * A rule is compiled once, on first use, into a DayMatcher that answers "first ringing
+ * day on or after X" in constant time. Skip dates are a sorted array that is binary
+ * searched. Rules are stored in their text form, see encode() and parse().
+ */
+class RecurrenceRule(val pattern: Pattern, skipDays: LongArray = LongArray(0)) {
+    sealed class Pattern {
+        // dayMask uses the Alarm.getRepeatDayMask() packing
+        data class Weekly(val dayMask: Int) : Pattern()
+        
+        data class EveryNDays(val interval: Int, val anchorEpochDay: Long) : Pattern()
+        
+        // ordinal is 1 to 5, or -1 for the last such weekday; dayOfWeek is a Calendar.DAY_OF_WEEK
+        data class NthWeekdayOfMonth(val ordinal: Int, val dayOfWeek: Int) : Pattern()
+        
+        // Cycle of length days starting at anchorEpochDay; bit i of onDays set = day i of the cycle rings
+        data class Rotation(val onDays: Long, val length: Int, val anchorEpochDay: Long) : Pattern()
+    }
+    
+    companion object {
+        const val NO_DAY = Long.MAX_VALUE
+        const val MAX_ROTATION_LENGTH = 64
+        
+        // Inverse of encode(); throws IllegalArgumentException on malformed input
+        @JvmStatic
+        fun parse(text: String): RecurrenceRule {
+            val parts = text.split(';')
+            val fields = parts[0].split(':')
+            fun field(index: Int): String {
+                require(index < fields.size) { "Missing field in recurrence rule: $text" }
+                return fields[index]
+            }
+            val pattern = when (field(0)) {
+                "weekly" -> Pattern.Weekly(field(1).toInt())
+                "days" -> Pattern.EveryNDays(field(1).toInt(), field(2).toLong())
+                "month" -> Pattern.NthWeekdayOfMonth(field(1).toInt(), field(2).toInt())
+                "rotation" -> {
+                    val cycle = field(1)
+                    require(cycle.all { it == '0' || it == '1' }) { "Bad rotation cycle: $cycle" }
+                    var onDays = 0L
+                    cycle.forEachIndexed { i, c -> if (c == '1') onDays = onDays or (1L shl i) }
+                    Pattern.Rotation(onDays, cycle.length, field(2).toLong())
+                }
+                else -> throw IllegalArgumentException("Unknown recurrence rule: $text")
+            }
+            var skipDays = LongArray(0)
+            for (i in 1 until parts.size) {
+                val option = parts[i]
+                require(option.startsWith("skip=")) { "Unknown recurrence option: $option" }
+                val values = option.removePrefix("skip=")
+                if (values.isNotEmpty()) {
+                    skipDays = values.split(',').map { it.toLong() }.toLongArray()
+                }
+            }
+            return RecurrenceRule(pattern, skipDays)
+        }
+        
+        // Proleptic Gregorian month arithmetic on epoch days, after Howard Hinnant's civil date algorithms.
+        // A month index is year * 12 + (month - 1).
+        internal fun monthIndexOf(epochDay: Long): Long {
+            val z = epochDay + 719468
+            val era = Math.floorDiv(z, 146097L)
+            val dayOfEra = z - era * 146097
+            val yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365
+            val dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100)
+            val shiftedMonth = (5 * dayOfYear + 2) / 153 // March = 0
+            val month = if (shiftedMonth < 10) shiftedMonth + 3 else shiftedMonth - 9
+            val year = yearOfEra + era * 400 + if (month <= 2) 1 else 0
+            return year * 12 + (month - 1)
+        }
+        
+        internal fun firstDayOfMonth(monthIndex: Long): Long {
+            val month = Math.floorMod(monthIndex, 12L) + 1
+            val year = Math.floorDiv(monthIndex, 12L) - if (month <= 2) 1 else 0
+            val era = Math.floorDiv(year, 400L)
+            val yearOfEra = year - era * 400
+            val dayOfYear = (153 * (if (month > 2) month - 3 else month + 9) + 2) / 5
+            val dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear
+            return era * 146097 + dayOfEra - 719468
+        }
+    }
+    
+    val skipDays: LongArray = skipDays.copyOf().also { Arrays.sort(it) }
+    
+    init {
+        when (pattern) {
+            is Pattern.Weekly -> require(pattern.dayMask and NextFireTimeCalculator.ALL_DAYS != 0) { "No days" }
+            is Pattern.EveryNDays -> require(pattern.interval >= 1) { "Interval must be at least one day" }
+            is Pattern.NthWeekdayOfMonth -> {
+                require(pattern.ordinal in 1..5 || pattern.ordinal == -1) { "Bad ordinal ${pattern.ordinal}" }
+                require(pattern.dayOfWeek in 1..7) { "Bad day of week ${pattern.dayOfWeek}" }
+            }
+            is Pattern.Rotation -> {
+                require(pattern.length in 1..MAX_ROTATION_LENGTH) { "Bad rotation length ${pattern.length}" }
+                require(pattern.onDays and lengthMask(pattern.length) != 0L) { "Rotation has no on days" }
+            }
+        }
+    }
+    
+    private val matcher: DayMatcher by lazy { compile(pattern) }
+    private val description: String by lazy { buildDescription() }
+    
+    /** First day on or after fromEpochDay on which the alarm rings, or NO_DAY. */
+    fun nextDay(fromEpochDay: Long): Long {
+        var day = matcher.nextDay(fromEpochDay)
+        // Each skip date that is hit costs one more step; a rule can't skip more days than it has
+        while (day != NO_DAY && Arrays.binarySearch(skipDays, day) >= 0) {
+            day = matcher.nextDay(day + 1)
+        }
+        return day
+    }
+    
+    /** Earliest fire time strictly after afterMillis at minuteOfDay local time, or -1. */
+    fun nextFireTime(
+        minuteOfDay: Int,
+        afterMillis: Long,
+        calculator: NextFireTimeCalculator = NextFireTimeCalculator.systemDefault()
+    ): Long {
+        // Start a day early for the same reason as NextFireTimeCalculator: long DST gaps push times forward
+        var day = calculator.localEpochDay(afterMillis) - 1
+        while (true) {
+            day = nextDay(day)
+            if (day == NO_DAY) {
+                return -1
+            }
+            val fireMillis = calculator.fireTimeOnDay(day, minuteOfDay)
+            if (fireMillis > afterMillis) {
+                return fireMillis
+            }
+            day++
+        }
+    }
+    
+    fun encode(): String {
+        val builder = StringBuilder()
+        when (pattern) {
+            is Pattern.Weekly -> builder.append("weekly:").append(pattern.dayMask)
+            is Pattern.EveryNDays -> builder.append("days:").append(pattern.interval)
+                .append(':').append(pattern.anchorEpochDay)
+            is Pattern.NthWeekdayOfMonth -> builder.append("month:").append(pattern.ordinal)
+                .append(':').append(pattern.dayOfWeek)
+            is Pattern.Rotation -> {
+                builder.append("rotation:")
+                for (i in 0 until pattern.length) {
+                    builder.append(if (pattern.onDays and (1L shl i) != 0L) '1' else '0')
+                }
+                builder.append(':').append(pattern.anchorEpochDay)
+            }
+        }
+        if (skipDays.isNotEmpty()) {
+            builder.append(";skip=")
+            skipDays.forEachIndexed { i, day ->
+                if (i > 0) builder.append(',')
+                builder.append(day)
+            }
+        }
+        return builder.toString()
+    }
+    
+    // Short text for the alarm list
+    fun describe(): String = description
+    
+    private fun buildDescription(): String {
+        val base = when (pattern) {
+            is Pattern.Weekly -> Alarm.formatRepeatDays(true, pattern.dayMask)
+            is Pattern.EveryNDays -> if (pattern.interval == 1) "Every day" else "Every ${pattern.interval} days"
+            is Pattern.NthWeekdayOfMonth -> {
+                val dayName = arrayOf("Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat")[pattern.dayOfWeek - 1]
+                val ordinal = when (pattern.ordinal) {
+                    -1 -> "Last"
+                    1 -> "1st"
+                    2 -> "2nd"
+                    3 -> "3rd"
+                    else -> "${pattern.ordinal}th"
+                }
+                "$ordinal $dayName of the month"
+            }
+            is Pattern.Rotation -> {
+                val on = java.lang.Long.bitCount(pattern.onDays and lengthMask(pattern.length))
+                "$on on / ${pattern.length - on} off rotation"
+            }
+        }
+        return if (skipDays.isEmpty()) base else "$base, ${skipDays.size} skipped"
+    }
+    
+    override fun equals(other: Any?): Boolean {
+        return other is RecurrenceRule && pattern == other.pattern && skipDays.contentEquals(other.skipDays)
+    }
+    
+    override fun hashCode(): Int = pattern.hashCode() * 31 + skipDays.contentHashCode()
+    
+    override fun toString(): String = encode()
+}
+
+private fun lengthMask(length: Int): Long = if (length == 64) -1L else (1L shl length) - 1
+
+// Compiled form of a Pattern: first matching day on or after the given one
+internal interface DayMatcher {
+    fun nextDay(fromEpochDay: Long): Long
+}
+
+internal fun compile(pattern: RecurrenceRule.Pattern): DayMatcher {
+    return when (pattern) {
+        is RecurrenceRule.Pattern.Weekly -> WeeklyMatcher(pattern.dayMask and NextFireTimeCalculator.ALL_DAYS)
+        is RecurrenceRule.Pattern.EveryNDays -> IntervalMatcher(pattern.interval.toLong(), pattern.anchorEpochDay)
+        is RecurrenceRule.Pattern.NthWeekdayOfMonth -> MonthlyMatcher(pattern.ordinal, pattern.dayOfWeek - 1)
+        is RecurrenceRule.Pattern.Rotation -> RotationMatcher(pattern.onDays, pattern.length, pattern.anchorEpochDay)
+    }
+}
+
+private class WeeklyMatcher(private val dayMask: Int) : DayMatcher {
+    override fun nextDay(fromEpochDay: Long): Long {
+        return fromEpochDay + NextFireTimeCalculator.daysUntil(dayMask, NextFireTimeCalculator.dayOfWeekIndex(fromEpochDay))
+    }
+}
+
+private class IntervalMatcher(private val interval: Long, private val anchor: Long) : DayMatcher {
+    override fun nextDay(fromEpochDay: Long): Long {
+        if (fromEpochDay <= anchor) {
+            return anchor
+        }
+        val periods = (fromEpochDay - anchor + interval - 1) / interval
+        return anchor + periods * interval
+    }
+}
+
+// Table of the distance from each day of the cycle to the next on day, built once
+private class RotationMatcher(onDays: Long, private val length: Int, private val anchor: Long) : DayMatcher {
+    private val distances = ByteArray(length)
+    
+    init {
+        for (phase in 0 until length) {
+            var distance = 0
+            while (onDays and (1L shl ((phase + distance) % length)) == 0L) {
+                distance++
+            }
+            distances[phase] = distance.toByte()
+        }
+    }
+    
+    override fun nextDay(fromEpochDay: Long): Long {
+        val from = maxOf(fromEpochDay, anchor)
+        val phase = ((from - anchor) % length).toInt()
+        return from + distances[phase]
+    }
+}
+
+private class MonthlyMatcher(private val ordinal: Int, private val dayIndex: Int) : DayMatcher {
+    override fun nextDay(fromEpochDay: Long): Long {
+        var monthIndex = RecurrenceRule.monthIndexOf(fromEpochDay)
+        var first = RecurrenceRule.firstDayOfMonth(monthIndex)
+        // Every weekday falls 52 or 53 times a year, so each has a fifth occurrence in at least
+        // four months of any year; thirteen months always reach one
+        repeat(13) {
+            val next = RecurrenceRule.firstDayOfMonth(monthIndex + 1)
+            val day = if (ordinal > 0) {
+                first + NextFireTimeCalculator.daysUntil(1 shl dayIndex, NextFireTimeCalculator.dayOfWeekIndex(first)) +
+                    (ordinal - 1) * 7L
+            } else {
+                val last = next - 1
+                last - Math.floorMod(NextFireTimeCalculator.dayOfWeekIndex(last) - dayIndex, 7)
+            }
+            if (day < next && day >= fromEpochDay) {
+                return day
+            }
+            monthIndex++
+            first = next
+        }
+        return RecurrenceRule.NO_DAY
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.stepalarm
+
+import android.content.Context
+import android.util.Log
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+
+/**
+ * Persisted record of what AlarmScheduler has armed in AlarmManager, keyed by the
+ * PendingIntent request code. AlarmScheduler diffs the desired schedule against it so
+ * only entries that are new, moved or gone cost a binder call. The ledger is only
+ * touched from AlarmScheduler while holding the instance lock.
+ */
+class ScheduleLedger private constructor(context: Context) {
+    // day is the Calendar.DAY_OF_WEEK for repeating alarms, 0 for one-time alarms, 8 for
+    // RecurrenceRule alarms, 9 for test alarms and the weekly slot for the single next-alarm entry
+    data class Entry(val alarmId: Long, val day: Int, val fireTime: Long)
+    
+    companion object {
+        private const val TAG = "ScheduleLedger"
+        private const val FILE_NAME = "schedule_ledger.bin"
+        // Version 1 gave one-time alarms the request code id, which could collide with id * 10 + day
+        private const val VERSION = 2
+        
+        @Volatile
+        private var instance: ScheduleLedger? = null
+        
+        @JvmStatic
+        fun getInstance(context: Context): ScheduleLedger {
+            return instance ?: synchronized(this) {
+                instance ?: ScheduleLedger(context.applicationContext).also { instance = it }
+            }
+        }
+    }
+    
+    // Device-protected, so the ledger can be rebuilt at LOCKED_BOOT_COMPLETED
+    private val file = DeviceStorage.file(context, FILE_NAME)
+    private val entries = HashMap<Int, Entry>()
+    private var dirty = false
+    private var staleCodes = IntArray(0)
+    private var unrecorded = false
+    
+    init {
+        load()
+    }
+    
+    val size: Int
+        get() = entries.size
+    
+    operator fun get(requestCode: Int): Entry? = entries[requestCode]
+    
+    fun put(requestCode: Int, entry: Entry) {
+        if (entries.put(requestCode, entry) != entry) {
+            dirty = true
+        }
+    }
+    
+    fun remove(requestCode: Int) {
+        if (entries.remove(requestCode) != null) {
+            dirty = true
+        }
+    }
+    
+    // Request codes of the entries that match, copied so the caller may remove while iterating
+    fun requestCodes(filter: (Int, Entry) -> Boolean): IntArray {
+        val codes = IntArray(entries.size)
+        var count = 0
+        for ((code, entry) in entries) {
+            if (filter(code, entry)) {
+                codes[count++] = code
+            }
+        }
+        return codes.copyOf(count)
+    }
+    
+    // Request codes a ledger of an older version had armed; returned once so they can be cancelled
+    fun takeStaleCodes(): IntArray {
+        val codes = staleCodes
+        staleCodes = IntArray(0)
+        return codes
+    }
+    
+    // True once if there was no ledger file, so what an older build armed was never recorded
+    fun takeUnrecorded(): Boolean {
+        val result = unrecorded
+        unrecorded = false
+        return result
+    }
+    
+    // AlarmManager forgets everything on reboot
+    fun clear() {
+        if (entries.isNotEmpty()) {
+            entries.clear()
+            dirty = true
+        }
+    }
+    
+    // Written synchronously: a ledger that lags behind AlarmManager would skip a needed cancel
+    fun save() {
+        if (!dirty) {
+            return
+        }
+        val tmp = File(file.path + ".tmp")
+        try {
+            DataOutputStream(FileOutputStream(tmp).buffered()).use { out ->
+                out.writeInt(VERSION)
+                out.writeInt(entries.size)
+                for ((code, entry) in entries) {
+                    out.writeInt(code)
+                    out.writeLong(entry.alarmId)
+                    out.writeInt(entry.day)
+                    out.writeLong(entry.fireTime)
+                }
+            }
+            if (!tmp.renameTo(file)) {
+                Log.e(TAG, "Failed to replace ledger file")
+                return
+            }
+            dirty = false
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to write ledger", e)
+        }
+    }
+    
+    private fun load() {
+        if (!file.exists()) {
+            // Written at the first save, so an empty ledger is not taken for an unrecorded one again
+            unrecorded = true
+            dirty = true
+            return
+        }
+        try {
+            DataInputStream(FileInputStream(file).buffered()).use { input ->
+                val version = input.readInt()
+                if (version != VERSION) {
+                    // The entries are dropped, but what they armed is still in AlarmManager
+                    if (version == 1) {
+                        staleCodes = IntArray(input.readInt()) {
+                            val code = input.readInt()
+                            input.readLong() // alarmId, day and fireTime are not needed to cancel
+                            input.readInt()
+                            input.readLong()
+                            code
+                        }
+                    }
+                    dirty = true
+                    return
+                }
+                repeat(input.readInt()) {
+                    entries[input.readInt()] = Entry(input.readLong(), input.readInt(), input.readLong())
+                }
+            }
+        } catch (e: IOException) {
+            // Starting from an empty ledger only costs re-arming everything once
+            Log.e(TAG, "Failed to read ledger", e)
+            entries.clear()
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.stepalarm;
+
+import android.hardware.Sensor;
+import android.os.SystemClock;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms for the sensor callbacks of StepCounterService: events per
+ * sensor type, events dropped while not counting, how long after event.timestamp each
+ * event is handled, how long the callback runs and how many steps land in each second.
+ * Updates are lock-free and allocation-free so they add nothing measurable to the path
+ * they measure. StepCounterService resets them when counting starts and logs a snapshot
+ * when it stops.
+ */
+public final class SensorPipelineMetrics {
+    private static final long MAX_MICROS = 60_000_000L; // One minute
+    private static final long SECOND_NANOS = 1_000_000_000L;
+    // Sensor types above this are counted together
+    private static final int MAX_SENSOR_TYPE = 40;
+
+    private final AtomicLongArray eventsByType = new AtomicLongArray(MAX_SENSOR_TYPE + 1);
+    private final AtomicLong dropped = new AtomicLong();
+    private final LogLinearHistogram deliveryLagMicros = new LogLinearHistogram(MAX_MICROS);
+    private final LogLinearHistogram callbackMicros = new LogLinearHistogram(MAX_MICROS);
+    private final LogLinearHistogram stepsPerSecond = new LogLinearHistogram(1_000);
+
+    // Touched only from the sensor callback thread
+    private long windowStartNanos = -1;
+    private long windowSteps;
+    private long firstStepNanos = -1;
+    private long lastStepNanos;
+    private long steps;
+
+    // Called first thing in onSensorChanged; returns the value to pass to callbackFinished
+    public long callbackStarted() {
+        return System.nanoTime();
+    }
+
+    public void callbackFinished(long startNanos) {
+        callbackMicros.record((System.nanoTime() - startNanos) / 1_000);
+    }
+
+    // eventTimestampNanos is SensorEvent.timestamp, on the elapsedRealtimeNanos clock
+    public void eventReceived(int sensorType, long eventTimestampNanos) {
+        eventsByType.incrementAndGet(Math.min(Math.max(sensorType, 0), MAX_SENSOR_TYPE));
+        deliveryLagMicros.record((SystemClock.elapsedRealtimeNanos() - eventTimestampNanos) / 1_000);
+    }
+
+    public void eventDropped() {
+        dropped.incrementAndGet();
+    }
+
+    // newSteps counted from the event with this timestamp; a step counter event can carry several
+    public void stepsCounted(long newSteps, long eventTimestampNanos) {
+        if (firstStepNanos < 0) {
+            firstStepNanos = eventTimestampNanos;
+        }
+        lastStepNanos = eventTimestampNanos;
+        steps += newSteps;
+        if (windowStartNanos < 0) {
+            windowStartNanos = eventTimestampNanos;
+        } else if (eventTimestampNanos - windowStartNanos >= SECOND_NANOS) {
+            // Seconds without any step are left out, so the figure is the walking pace
+            stepsPerSecond.record(windowSteps);
+            windowStartNanos = eventTimestampNanos;
+            windowSteps = 0;
+        }
+        windowSteps += newSteps;
+    }
+
+    public void reset() {
+        for (int i = 0; i < eventsByType.length(); i++) {
+            eventsByType.set(i, 0);
+        }
+        dropped.set(0);
+        deliveryLagMicros.reset();
+        callbackMicros.reset();
+        stepsPerSecond.reset();
+        windowStartNanos = -1;
+        windowSteps = 0;
+        firstStepNanos = -1;
+        lastStepNanos = 0;
+        steps = 0;
+    }
+
+    // Multi-line snapshot of everything recorded since the last reset
+    public String snapshot() {
+        StringBuilder builder = new StringBuilder("Sensor pipeline:");
+        for (int type = 0; type < eventsByType.length(); type++) {
+            long events = eventsByType.get(type);
+            if (events > 0) {
+                builder.append(' ').append(sensorName(type)).append('=').append(events);
+            }
+        }
+        builder.append(" dropped=").append(dropped.get());
+        builder.append("\n  delivery lag: ").append(deliveryLagMicros.describe("us"));
+        builder.append("\n  callback: ").append(callbackMicros.describe("us"));
+        builder.append("\n  steps per second: ").append(stepsPerSecond.describe("steps"));
+        if (steps > 1 && lastStepNanos > firstStepNanos) {
+            builder.append(String.format(Locale.US, "\n  overall pace: %.2f steps/s over %d steps",
+                (steps - 1) * (double) SECOND_NANOS / (lastStepNanos - firstStepNanos), steps));
+        }
+        return builder.toString();
+    }
+
+    private static String sensorName(int type) {
+        switch (type) {
+            case Sensor.TYPE_ACCELEROMETER:
+                return "accelerometer";
+            case Sensor.TYPE_STEP_DETECTOR:
+                return "step_detector";
+            case Sensor.TYPE_STEP_COUNTER:
+                return "step_counter";
+            case MAX_SENSOR_TYPE:
+                return "other";
+            default:
+                return "type" + type;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.example.stepalarm
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.time.DayOfWeek
+import java.time.Instant
+import java.time.ZoneId
+
+/**
+ * Running totals over finished alarm sessions, kept per day (last 64), per week (last 26,
+ * starting Monday), per weekday, per alarm (the 32 most recently seen) and overall. Adding a
+ * session touches five fixed-size buckets in a memory-mapped file of constant size, and
+ * every query reads one bucket, so neither depends on how much history there is. Sessions
+ * stay in the day they were recorded in, even if the time zone changes later. If the file is
+ * lost it can be rebuilt from TimelineRecords, but only the sessions the timeline still holds.
+ *
+ * File: magic (4) | version (1) | padding (3) | buckets, each BUCKET_SIZE bytes
+ */
+class SessionRollups(private val file: File) {
+    companion object {
+        private const val MAGIC = 0x53415255 // "SARU"
+        private const val VERSION = 1
+        private const val HEADER_SIZE = 8
+        
+        // A session delivered later than this after its scheduled time counts as late
+        const val LATE_THRESHOLD_MS = 60_000
+        
+        const val DAY_SLOTS = 64
+        const val WEEK_SLOTS = 26
+        const val ALARM_SLOTS = 32
+        private const val WEEKDAY_BASE = DAY_SLOTS + WEEK_SLOTS
+        private const val ALARM_BASE = WEEKDAY_BASE + 7
+        private const val TOTAL_SLOT = ALARM_BASE + ALARM_SLOTS
+        private const val SLOT_COUNT = TOTAL_SLOT + 1
+        
+        // Bucket fields
+        private const val KEY = 0            // Long: epoch day, Monday's epoch day, weekday or alarm id
+        private const val LAST_SEEN = 8      // Long: receivedAtMillis of the newest session
+        private const val SESSIONS = 16      // Int
+        private const val DISMISSED = 20     // Int: sessions that reached the step target
+        private const val MISSED = 24        // Int: sessions released without reaching it
+        private const val LATE = 28          // Int
+        private const val RING_SUM = 32      // Long: ms from sound start to release, summed
+        private const val RING_MAX = 40      // Int
+        private const val STEPS = 44         // Int
+        private const val WALK_MS = 48       // Long: ms from sensor registration to the last step, summed
+        private const val BUCKET_SIZE = 56
+        
+        const val FILE_SIZE = HEADER_SIZE + SLOT_COUNT * BUCKET_SIZE
+        
+        private const val EMPTY = Long.MIN_VALUE
+        
+        private fun mondayOf(epochDay: Long) = epochDay - Math.floorMod(epochDay + 3, 7L)
+        
+        private fun daySlot(epochDay: Long) = Math.floorMod(epochDay, DAY_SLOTS.toLong()).toInt()
+        
+        private fun weekSlot(monday: Long) = DAY_SLOTS + Math.floorMod(Math.floorDiv(monday, 7L), WEEK_SLOTS.toLong()).toInt()
+    }
+    
+    class Rollup(
+        val sessions: Int,
+        val dismissed: Int,
+        val missed: Int,
+        val late: Int,
+        val ringSumMillis: Long,
+        val ringMaxMillis: Int,
+        val steps: Int,
+        val walkMillis: Long
+    ) {
+        val meanRingMillis: Long get() = if (sessions == 0) 0L else ringSumMillis / sessions
+        
+        val stepsPerMinute: Double get() = if (walkMillis <= 0) 0.0 else steps * 60_000.0 / walkMillis
+    }
+    
+    /** Adds one finished session to every bucket it belongs to. */
+    @Throws(IOException::class)
+    fun add(record: TimelineRecord, zone: ZoneId) {
+        write { buffer -> add(buffer, record, zone) }
+    }
+    
+    /** Replaces everything with totals over the given sessions. */
+    @Throws(IOException::class)
+    fun rebuild(records: List<TimelineRecord>, zone: ZoneId) {
+        write { buffer ->
+            initialize(buffer)
+            records.forEach { add(buffer, it, zone) }
+        }
+    }
+    
+    // Null when no session of that day is among the last DAY_SLOTS days' buckets
+    fun day(epochDay: Long): Rollup? = read(daySlot(epochDay), epochDay)
+    
+    // The week containing epochDay, starting Monday
+    fun week(epochDay: Long): Rollup? = mondayOf(epochDay).let { read(weekSlot(it), it) }
+    
+    fun weekday(day: DayOfWeek): Rollup? = read(WEEKDAY_BASE + day.ordinal, day.value.toLong())
+    
+    fun alarm(alarmId: Long): Rollup? {
+        val buffer = map(false) ?: return null
+        for (slot in ALARM_BASE until ALARM_BASE + ALARM_SLOTS) {
+            if (buffer.getLong(offsetOf(slot) + KEY) == alarmId) {
+                return rollupAt(buffer, offsetOf(slot))
+            }
+        }
+        return null
+    }
+    
+    fun total(): Rollup? = read(TOTAL_SLOT, 0)
+    
+    private fun add(buffer: ByteBuffer, record: TimelineRecord, zone: ZoneId) {
+        val epochDay = Instant.ofEpochMilli(record.receivedAtMillis).atZone(zone).toLocalDate().toEpochDay()
+        val monday = mondayOf(epochDay)
+        val weekday = Math.floorMod(epochDay + 3, 7L).toInt() // Monday = 0, like DayOfWeek.ordinal
+        addTo(buffer, daySlot(epochDay), epochDay, record)
+        addTo(buffer, weekSlot(monday), monday, record)
+        addTo(buffer, WEEKDAY_BASE + weekday, weekday + 1L, record)
+        addTo(buffer, alarmSlot(buffer, record.alarmId), record.alarmId, record)
+        addTo(buffer, TOTAL_SLOT, 0, record)
+    }
+    
+    // The slot already holding the alarm, else an empty one, else the one seen least recently
+    private fun alarmSlot(buffer: ByteBuffer, alarmId: Long): Int {
+        var candidate = ALARM_BASE
+        var candidateLastSeen = Long.MAX_VALUE
+        for (slot in ALARM_BASE until ALARM_BASE + ALARM_SLOTS) {
+            val key = buffer.getLong(offsetOf(slot) + KEY)
+            if (key == alarmId) {
+                return slot
+            }
+            val lastSeen = if (key == EMPTY) Long.MIN_VALUE else buffer.getLong(offsetOf(slot) + LAST_SEEN)
+            if (lastSeen < candidateLastSeen) {
+                candidate = slot
+                candidateLastSeen = lastSeen
+            }
+        }
+        return candidate
+    }
+    
+    private fun addTo(buffer: ByteBuffer, slot: Int, key: Long, record: TimelineRecord) {
+        val base = offsetOf(slot)
+        if (buffer.getLong(base + KEY) != key) {
+            // The slot holds an older day, week or alarm; start it over
+            clearBucket(buffer, base, key)
+        }
+        val lateness = record.offset(TimelineStage.SCHEDULED).let { if (it == TimelineRecord.MISSING) 0 else -it }
+        val reached = record.offset(TimelineStage.TARGET_REACHED) != TimelineRecord.MISSING
+        val ringStart = if (record.offset(TimelineStage.SOUND_STARTED) != TimelineRecord.MISSING)
+            TimelineStage.SOUND_STARTED else TimelineStage.RECEIVED
+        val ring = record.duration(ringStart, TimelineStage.RELEASED).let { if (it == TimelineRecord.MISSING) 0 else it }
+        val walk = record.duration(TimelineStage.SENSOR_REGISTERED,
+            if (reached) TimelineStage.TARGET_REACHED else TimelineStage.RELEASED)
+        
+        buffer.putLong(base + LAST_SEEN, maxOf(buffer.getLong(base + LAST_SEEN), record.receivedAtMillis))
+        increment(buffer, base + SESSIONS, 1)
+        increment(buffer, base + if (reached) DISMISSED else MISSED, 1)
+        if (lateness > LATE_THRESHOLD_MS) {
+            increment(buffer, base + LATE, 1)
+        }
+        buffer.putLong(base + RING_SUM, buffer.getLong(base + RING_SUM) + ring)
+        buffer.putInt(base + RING_MAX, maxOf(buffer.getInt(base + RING_MAX), ring))
+        if (walk != TimelineRecord.MISSING && walk > 0) {
+            increment(buffer, base + STEPS, record.steps)
+            buffer.putLong(base + WALK_MS, buffer.getLong(base + WALK_MS) + walk)
+        }
+    }
+    
+    private fun increment(buffer: ByteBuffer, offset: Int, by: Int) {
+        buffer.putInt(offset, buffer.getInt(offset) + by)
+    }
+    
+    private fun clearBucket(buffer: ByteBuffer, base: Int, key: Long) {
+        for (i in 0 until BUCKET_SIZE) {
+            buffer.put(base + i, 0)
+        }
+        buffer.putLong(base + KEY, key)
+    }
+    
+    private fun initialize(buffer: ByteBuffer) {
+        buffer.putInt(0, MAGIC)
+        buffer.put(4, VERSION.toByte())
+        for (slot in 0 until SLOT_COUNT) {
+            clearBucket(buffer, offsetOf(slot), EMPTY)
+        }
+    }
+    
+    private fun offsetOf(slot: Int) = HEADER_SIZE + slot * BUCKET_SIZE
+    
+    private fun read(slot: Int, key: Long): Rollup? {
+        val buffer = map(false) ?: return null
+        val base = offsetOf(slot)
+        return if (buffer.getLong(base + KEY) == key) rollupAt(buffer, base) else null
+    }
+    
+    private fun rollupAt(buffer: ByteBuffer, base: Int) = Rollup(
+        buffer.getInt(base + SESSIONS),
+        buffer.getInt(base + DISMISSED),
+        buffer.getInt(base + MISSED),
+        buffer.getInt(base + LATE),
+        buffer.getLong(base + RING_SUM),
+        buffer.getInt(base + RING_MAX),
+        buffer.getInt(base + STEPS),
+        buffer.getLong(base + WALK_MS)
+    )
+    
+    private inline fun write(block: (ByteBuffer) -> Unit) {
+        val buffer = map(true) ?: throw IOException("Failed to map ${file.name}")
+        block(buffer)
+    }
+    
+    // Null if there is nothing to read; for writing, a file of another size or format is started over
+    private fun map(forWrite: Boolean): ByteBuffer? {
+        if (!forWrite && file.length() != FILE_SIZE.toLong()) {
+            return null
+        }
+        return try {
+            RandomAccessFile(file, if (forWrite) "rw" else "r").use { raf ->
+                if (forWrite && raf.length() != FILE_SIZE.toLong()) {
+                    raf.setLength(FILE_SIZE.toLong())
+                }
+                val mode = if (forWrite) FileChannel.MapMode.READ_WRITE else FileChannel.MapMode.READ_ONLY
+                val buffer = raf.channel.map(mode, 0, FILE_SIZE.toLong())
+                val valid = buffer.getInt(0) == MAGIC && buffer.get(4).toInt() == VERSION
+                when {
+                    valid -> buffer
+                    forWrite -> buffer.also { initialize(it) }
+                    else -> null
+                }
+            }
+        } catch (e: IOException) {
+            if (forWrite) throw e else null
+        }
+    }
+}
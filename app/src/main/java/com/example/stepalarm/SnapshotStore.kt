@@ -0,0 +1,57 @@
+package com.example.stepalarm
+
+import java.io.File
+import java.io.IOException
+
+/**
+ * The binary alarm snapshot and the marker that says SQLite is behind it. A cold process
+ * trusts the snapshot over SQLite, so the snapshot is always written first: a process
+ * that dies part way leaves the snapshot ahead and the marker behind, never a stale
+ * snapshot next to a newer database. The marker also covers changes made while locked,
+ * when SQLite cannot be opened at all.
+ */
+internal class SnapshotStore(private val file: File, private val resyncMarker: File) {
+    // Table last written to or read from the file; committing it again skips the rewrite
+    @Volatile
+    private var writtenTable: AlarmTable? = null
+    
+    // The table in the file, or null if it is missing or unreadable
+    fun read(): AlarmTable? {
+        return AlarmCodec.readFile(file).also { writtenTable = it }
+    }
+    
+    // True while SQLite may be missing changes that the snapshot file has
+    fun needsResync(): Boolean = resyncMarker.exists()
+    
+    @Throws(IOException::class)
+    fun markResync() {
+        resyncMarker.createNewFile()
+    }
+    
+    /**
+     * Writes table to the file, then hands SQLite its part: writeDatabase is told whether
+     * it must rewrite every row rather than apply the latest change. Pass null while SQLite
+     * cannot be opened; the marker then stays until a later commit can catch up. If the
+     * file cannot be written, SQLite is left alone and the IOException is thrown.
+     */
+    @Throws(IOException::class)
+    fun commit(table: AlarmTable, writeDatabase: ((resync: Boolean) -> Unit)?) {
+        val resync = needsResync()
+        val rewrite = table !== writtenTable
+        if (rewrite && !resync) {
+            markResync()
+        }
+        if (rewrite) {
+            AlarmCodec.writeFile(file, table)
+            writtenTable = table
+        }
+        if (writeDatabase == null) {
+            return
+        }
+        // Throws straight through if SQLite fails, leaving the marker for the next commit
+        writeDatabase(resync)
+        if ((rewrite || resync) && !resyncMarker.delete()) {
+            throw IOException("Failed to clear ${resyncMarker.name}")
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.stepalarm;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * Measures a cold start of the alarm list: time from process start to the first frame,
+ * and to the first frame that shows the loaded alarms. Only the first launch in a
+ * process is reported, so warm starts do not skew the numbers.
+ */
+public final class StartupTiming {
+    private static final String TAG = "StartupTiming";
+
+    private static boolean firstFrameReported;
+    private static boolean contentReported;
+
+    private StartupTiming() {
+    }
+
+    // Must be called from onCreate, after setContentView
+    public static void watchFirstFrame(Activity activity) {
+        if (firstFrameReported) {
+            return;
+        }
+        View decorView = activity.getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnDrawListener(new ViewTreeObserver.OnDrawListener() {
+            @Override
+            public void onDraw() {
+                if (firstFrameReported) {
+                    return;
+                }
+                firstFrameReported = true;
+                report(activity.getApplicationContext(), "first frame");
+                // Listeners can't be removed from inside onDraw
+                decorView.post(() -> decorView.getViewTreeObserver().removeOnDrawListener(this));
+            }
+        });
+    }
+
+    // Called on the main thread once the loaded alarms have been handed to the UI
+    public static void contentReady(Activity activity) {
+        if (contentReported) {
+            return;
+        }
+        contentReported = true;
+        activity.reportFullyDrawn();
+        report(activity.getApplicationContext(), "alarms shown");
+    }
+
+    private static void report(Context context, String milestone) {
+        long elapsed = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+        AppExecutors.diskIO().execute(() ->
+                LogFileWriter.logInfo(context, TAG, "Cold start to " + milestone + ": " + elapsed + " ms"));
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.stepalarm
 
 import android.app.Application
+import android.app.backup.BackupManager
 import android.util.Log
 
 class StepAlarmApplication : Application() {
@@ -21,7 +22,36 @@ class StepAlarmApplication : Application() {
             defaultHandler?.uncaughtException(thread, exception)
         }
         
-        LogFileWriter.logInfo(this, "StepAlarmApplication", "Application started")
+        // AlarmActivity asks for the sound to stop through the bus instead of a broadcast
+        EventBus.getDefault().subscribe(AlarmEvents.StopAlarm::class.java, EventBus.ThreadMode.POSTING) {
+            AlarmReceiver.stopAlarm(this)
+        }
+        
+        // Keep AlarmManager in step with every change to the alarms, whoever makes it.
+        // Delivered synchronously so callers can override the schedule right after an edit.
+        AlarmDatabase.observe(EventBus.ThreadMode.POSTING) { changes ->
+            AlarmScheduler.applyChanges(this, changes)
+        }
+        
+        // Only the alarms that changed are sent at the next key/value backup pass
+        val backupManager = BackupManager(this)
+        AlarmDatabase.observe(EventBus.ThreadMode.BACKGROUND) {
+            backupManager.dataChanged()
+        }
+        
+        // Not needed for the first frame, so the file append happens in the background
+        AppExecutors.diskIO().execute {
+            LogFileWriter.logInfo(this, "StepAlarmApplication", "Application started")
+        }
+        
+        // Bring back an alarm that was still ringing when the previous process died. The checkpoint
+        // is read off the main thread, which is only needed again if there is a session to resume.
+        AppExecutors.diskIO().execute {
+            val session = AlarmSessionCheckpoint.get(this).load() ?: return@execute
+            AppExecutors.mainThread().execute {
+                AlarmReceiver.resumeSession(this, session)
+            }
+        }
     }
 }
 
@@ -14,12 +14,17 @@ import android.hardware.SensorManager;
 import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.IOException;
+
 public class StepCounterService extends Service implements SensorEventListener {
     private static final String TAG = "StepCounterService";
     private static final String CHANNEL_ID = "StepCounterServiceChannel";
     private static final int NOTIFICATION_ID = 1;
+    private static final String JOURNAL_FILE_NAME = "step_journal.bin";
+    private static final int MAX_JOURNAL_BYTES = 256 * 1024;
     private final IBinder binder = new LocalBinder();
     private SensorManager sensorManager;
     private Sensor accelerometerSensor;
@@ -38,6 +43,11 @@ public class StepCounterService extends Service implements SensorEventListener {
     private boolean useStepDetector = false;
     private long initialStepCounterValue = -1;
     private boolean initialValueSet = false;
+    private AlarmSessionCheckpoint checkpoint;
+    private AlarmTimeline timeline;
+    private final SensorPipelineMetrics pipelineMetrics = new SensorPipelineMetrics();
+    private final StepJournal.Recorder journalRecorder = new StepJournal.Recorder();
+    private StepJournal journal;
 
     public class LocalBinder extends Binder {
         StepCounterService getService() {
@@ -50,6 +60,9 @@ public class StepCounterService extends Service implements SensorEventListener {
         LogFileWriter.logInfo(this, TAG, "=== StepCounterService.onCreate() called ===");
         super.onCreate();
         createNotificationChannel();
+        checkpoint = AlarmSessionCheckpoint.get(this);
+        timeline = AlarmTimeline.get(this);
+        journal = new StepJournal(DeviceStorage.file(this, JOURNAL_FILE_NAME), MAX_JOURNAL_BYTES);
         sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
         
         if (sensorManager == null) {
@@ -104,8 +117,21 @@ public class StepCounterService extends Service implements SensorEventListener {
 
     @Override
     public void onSensorChanged(SensorEvent event) {
+        // Timed around everything, logging included, so its share of the callback shows up
+        long callbackStart = pipelineMetrics.callbackStarted();
+        Tracing.beginSection("StepCounterService.onSensorChanged");
+        try {
+            handleSensorEvent(event);
+        } finally {
+            Tracing.endSection();
+        }
+        pipelineMetrics.callbackFinished(callbackStart);
+    }
+
+    private void handleSensorEvent(SensorEvent event) {
         LogFileWriter.logInfo(this, TAG, "=== onSensorChanged() called ===");
         if (!isCounting) {
+            pipelineMetrics.eventDropped();
             LogFileWriter.logWarning(this, TAG, "onSensorChanged called but isCounting is false");
             return;
         }
@@ -113,12 +139,15 @@ public class StepCounterService extends Service implements SensorEventListener {
             LogFileWriter.logError(this, TAG, "onSensorChanged called with null event");
             return;
         }
+        pipelineMetrics.eventReceived(event.sensor.getType(), event.timestamp);
+        timeline.mark(TimelineStage.FIRST_SENSOR_EVENT);
         
         LogFileWriter.logInfo(this, TAG, "Sensor type: " + event.sensor.getType() + ", useStepCounter: " + useStepCounter);
         
         if (useStepCounter && event.sensor.getType() == Sensor.TYPE_STEP_COUNTER) {
             // Step counter returns cumulative steps since last reboot
             long stepsSinceLastReboot = (long) event.values[0];
+            long previousCount = stepCount;
             LogFileWriter.logInfo(this, TAG, "Step counter event received, stepsSinceLastReboot: " + stepsSinceLastReboot);
             
             // Set initial value on first reading
@@ -139,6 +168,10 @@ public class StepCounterService extends Service implements SensorEventListener {
             }
             LogFileWriter.logInfo(this, TAG, String.format("StepCounter: total=%d, initial=%d, count=%d", 
                 stepsSinceLastReboot, initialStepCounterValue, stepCount));
+            if (stepCount > previousCount) {
+                onStepsCounted(stepCount - previousCount, event.timestamp);
+            }
+            publishStepCount();
             if (stepCount >= 10) {
                 onTargetReached();
             }
@@ -148,6 +181,8 @@ public class StepCounterService extends Service implements SensorEventListener {
             LogFileWriter.logInfo(this, TAG, "Step detector event received, value: " + event.values[0]);
             if (event.values[0] == 1.0f) {
                 stepCount++;
+                onStepsCounted(1, event.timestamp);
+                publishStepCount();
                 if (stepCount >= 10) {
                     onTargetReached();
                 }
@@ -183,12 +218,21 @@ public class StepCounterService extends Service implements SensorEventListener {
             if (magnitude > STEP_THRESHOLD && lastMagnitude <= STEP_THRESHOLD) {
                 stepCount++;
                 lastStepTime = currentTime;
+                onStepsCounted(1, event.timestamp);
+                publishStepCount();
                 LogFileWriter.logInfo(this, TAG, String.format("Accelerometer step detected! Total steps: %d, Magnitude: %.3f", stepCount, magnitude));
             }
             lastMagnitude = magnitude;
         }
     }
 
+    private void onStepsCounted(long newSteps, long timestampNanos) {
+        pipelineMetrics.stepsCounted(newSteps, timestampNanos);
+        for (long i = 0; i < newSteps; i++) {
+            journalRecorder.step(timestampNanos);
+        }
+    }
+
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {
         Log.d(TAG, "Sensor accuracy changed: " + accuracy);
@@ -235,10 +279,24 @@ public class StepCounterService extends Service implements SensorEventListener {
         lastStepTime = 0;
         initialStepCounterValue = -1;
         initialValueSet = false;
+        pipelineMetrics.reset();
         // Reset gravity filter
         gravity[0] = 0;
         gravity[1] = 0;
         gravity[2] = 0;
+
+        // Pick up the steps of a session that was interrupted by process death
+        AlarmSessionCheckpoint.Session session = checkpoint.current();
+        long resumedSteps = 0;
+        if (session != null && session.steps > 0) {
+            stepCount = session.steps;
+            if (session.stepBaseline >= 0) {
+                initialStepCounterValue = session.stepBaseline;
+                initialValueSet = true;
+            }
+            resumedSteps = stepCount;
+            LogFileWriter.logInfo(this, TAG, "Resumed step count from checkpoint: " + stepCount);
+        }
         
         boolean registered = false;
         
@@ -274,7 +332,12 @@ public class StepCounterService extends Service implements SensorEventListener {
             LogFileWriter.logInfo(this, TAG, "Started step counting using accelerometer fallback");
         }
         
+        int sensorType = useStepDetector ? Sensor.TYPE_STEP_DETECTOR
+            : useStepCounter ? Sensor.TYPE_STEP_COUNTER : Sensor.TYPE_ACCELEROMETER;
+        journalRecorder.start(session != null ? session.alarmId : -1, sensorType, System.currentTimeMillis(),
+            SystemClock.elapsedRealtimeNanos(), resumedSteps);
         isCounting = true;
+        timeline.mark(TimelineStage.SENSOR_REGISTERED);
         LogFileWriter.logInfo(this, TAG, "Step counting is now active");
     }
 
@@ -283,6 +346,15 @@ public class StepCounterService extends Service implements SensorEventListener {
             sensorManager.unregisterListener(this);
             isCounting = false;
             LogFileWriter.logInfo(this, TAG, "Stopped step counting");
+            LogFileWriter.logInfo(this, TAG, pipelineMetrics.snapshot());
+            byte[] journalEntry = journalRecorder.finish(SystemClock.elapsedRealtimeNanos());
+            AppExecutors.diskIO().execute(() -> {
+                try {
+                    journal.append(journalEntry);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to append to the step journal", e);
+                }
+            });
         }
     }
 
@@ -309,17 +381,25 @@ public class StepCounterService extends Service implements SensorEventListener {
         stopCounting();
     }
 
+    private void publishStepCount() {
+        checkpoint.updateSteps(initialStepCounterValue, stepCount);
+        Tracing.setCounter("step_count", stepCount);
+        timeline.recordSteps(stepCount);
+        if (stepCount > 0) {
+            timeline.mark(TimelineStage.FIRST_STEP);
+        }
+        EventBus.getDefault().post(new AlarmEvents.StepCountChanged(stepCount));
+    }
+
     private void onTargetReached() {
+        timeline.mark(TimelineStage.TARGET_REACHED);
         LogFileWriter.logInfo(this, TAG, "Target step count reached, stopping alarm");
 
         // 1. Stop counting
         stopCounting();
 
-        // 2. Notify app to stop alarm sound (choose one mechanism):
-
-        // a) Send broadcast
-        Intent intent = new Intent("com.example.stepalarm.ACTION_STEPS_COMPLETED");
-        sendBroadcast(intent);
+        // 2. Notify AlarmActivity so it can stop the alarm sound
+        EventBus.getDefault().post(AlarmEvents.STEPS_COMPLETED);
 
         // 3. Optionally stop foreground & service
         stopForeground(true);
@@ -0,0 +1,245 @@
+package com.example.stepalarm
+
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Compact journal of how each alarm was walked off: the sensor that counted, when counting
+ * started and stopped, and the time of every step. Step times are stored as varint deltas in
+ * milliseconds, so a typical step costs two bytes. Sessions are length-prefixed, so a scan
+ * can skip a session without decoding it.
+ *
+ * File: magic (4) | version (1) | sessions
+ * Session: body length (varint) | body
+ * Body: alarm id + 1 (varint) | sensor type (1) | start, wall clock ms (8) | duration ms (varint)
+ *       | steps resumed from a checkpoint (varint) | step count (varint) | step deltas ms (varint each)
+ */
+class StepJournal(private val file: File, private val maxBytes: Int) {
+    // Whether the file has been checked for a session cut short by a crash, which would hide later appends
+    private var tailChecked = false
+    
+    companion object {
+        private const val MAGIC = 0x5341534A // "SASJ"
+        private const val VERSION = 1
+        private const val HEADER_SIZE = 5
+        // Steps past this in one session are counted but not timed
+        const val MAX_TIMED_STEPS = 4096
+        
+        // Null if the file is missing, unreadable or written in another format
+        @JvmStatic
+        fun readAll(file: File): List<Session>? {
+            val buffer = map(file) ?: return null
+            val sessions = ArrayList<Session>()
+            while (buffer.hasRemaining()) {
+                val length = readVarint(buffer)
+                // A session cut short by a crash mid-append is dropped
+                if (length < 0 || length > buffer.remaining()) {
+                    break
+                }
+                val body = buffer.slice()
+                body.limit(length.toInt())
+                sessions.add(Session.read(body))
+                buffer.position(buffer.position() + length.toInt())
+            }
+            return sessions
+        }
+        
+        private fun map(file: File): ByteBuffer? {
+            if (!file.exists()) {
+                return null
+            }
+            return try {
+                RandomAccessFile(file, "r").use { raf ->
+                    val buffer = raf.channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+                    if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.get().toInt() != VERSION) {
+                        null
+                    } else {
+                        buffer
+                    }
+                }
+            } catch (e: IOException) {
+                null
+            }
+        }
+        
+        internal fun putVarint(buffer: ByteBuffer, value: Long) {
+            var v = value
+            while (v and 0x7FL.inv() != 0L) {
+                buffer.put(((v and 0x7F) or 0x80).toByte())
+                v = v ushr 7
+            }
+            buffer.put(v.toByte())
+        }
+        
+        // -1 if the buffer ends inside the varint
+        internal fun readVarint(buffer: ByteBuffer): Long {
+            var result = 0L
+            var shift = 0
+            while (buffer.hasRemaining() && shift < 64) {
+                val b = buffer.get().toInt()
+                result = result or ((b and 0x7F).toLong() shl shift)
+                if (b and 0x80 == 0) {
+                    return result
+                }
+                shift += 7
+            }
+            return -1
+        }
+        
+        private fun varintSize(value: Long): Int {
+            var size = 1
+            var v = value ushr 7
+            while (v != 0L) {
+                size++
+                v = v ushr 7
+            }
+            return size
+        }
+    }
+    
+    class Session(
+        val alarmId: Long,
+        val sensorType: Int,
+        val startMillis: Long,
+        val durationMillis: Long,
+        val resumedSteps: Long,
+        // Milliseconds from the start to each step
+        val stepOffsets: LongArray
+    ) {
+        companion object {
+            internal fun read(body: ByteBuffer): Session {
+                val alarmId = StepJournal.readVarint(body) - 1
+                val sensorType = body.get().toInt() and 0xFF
+                val startMillis = body.getLong()
+                val durationMillis = StepJournal.readVarint(body)
+                val resumedSteps = StepJournal.readVarint(body)
+                val count = StepJournal.readVarint(body).toInt()
+                var offset = 0L
+                val offsets = LongArray(count) {
+                    offset += StepJournal.readVarint(body)
+                    offset
+                }
+                return Session(alarmId, sensorType, startMillis, durationMillis, resumedSteps, offsets)
+            }
+        }
+    }
+    
+    /**
+     * Collects one session while it runs. step() only writes into a preallocated array, so it
+     * is cheap enough for the sensor callback; finish() returns the encoded session for append().
+     */
+    class Recorder {
+        private val deltas = ByteBuffer.allocate(MAX_TIMED_STEPS * 5)
+        private var alarmId = -1L
+        private var sensorType = 0
+        private var startMillis = 0L
+        private var startElapsedNanos = 0L
+        private var resumedSteps = 0L
+        private var lastOffset = 0L
+        private var stepCount = 0
+        
+        fun start(alarmId: Long, sensorType: Int, startMillis: Long, startElapsedNanos: Long, resumedSteps: Long) {
+            this.alarmId = alarmId
+            this.sensorType = sensorType
+            this.startMillis = startMillis
+            this.startElapsedNanos = startElapsedNanos
+            this.resumedSteps = resumedSteps
+            deltas.clear()
+            lastOffset = 0
+            stepCount = 0
+        }
+        
+        // timestampNanos is on the elapsedRealtimeNanos clock, like SensorEvent.timestamp
+        fun step(timestampNanos: Long) {
+            if (stepCount == MAX_TIMED_STEPS) {
+                return
+            }
+            // Batched events can carry times from before counting started, and steps are kept in order
+            val offset = maxOf(lastOffset, (timestampNanos - startElapsedNanos) / 1_000_000)
+            putVarint(deltas, offset - lastOffset)
+            lastOffset = offset
+            stepCount++
+        }
+        
+        fun finish(endElapsedNanos: Long): ByteArray {
+            val duration = maxOf(0L, (endElapsedNanos - startElapsedNanos) / 1_000_000)
+            val bodySize = varintSize(alarmId + 1) + 1 + 8 + varintSize(duration) + varintSize(resumedSteps) +
+                varintSize(stepCount.toLong()) + deltas.position()
+            val out = ByteBuffer.allocate(varintSize(bodySize.toLong()) + bodySize)
+            putVarint(out, bodySize.toLong())
+            putVarint(out, alarmId + 1)
+            out.put(sensorType.toByte())
+            out.putLong(startMillis)
+            putVarint(out, duration)
+            putVarint(out, resumedSteps)
+            putVarint(out, stepCount.toLong())
+            out.put(deltas.array(), 0, deltas.position())
+            return out.array()
+        }
+    }
+    
+    /**
+     * Appends one session encoded by Recorder.finish. If that would take the file past maxBytes,
+     * it is first rewritten with the newest sessions that fit in half of it.
+     */
+    @Throws(IOException::class)
+    fun append(session: ByteArray) {
+        val size = if (file.exists()) file.length() else 0L
+        if (size < HEADER_SIZE || size + session.size > maxBytes || (!tailChecked && completeEnd(map(file)) != size)) {
+            compact()
+        }
+        tailChecked = true
+        FileOutputStream(file, true).use { out -> out.channel.write(ByteBuffer.wrap(session)) }
+    }
+    
+    // Offset just past the last complete session; the buffer is left there
+    private fun completeEnd(buffer: ByteBuffer?, starts: MutableList<Int>? = null): Long {
+        if (buffer == null) {
+            return -1
+        }
+        var end = HEADER_SIZE
+        while (buffer.hasRemaining()) {
+            val start = buffer.position()
+            val length = readVarint(buffer)
+            if (length < 0 || length > buffer.remaining()) {
+                break
+            }
+            buffer.position(buffer.position() + length.toInt())
+            starts?.add(start)
+            end = buffer.position()
+        }
+        return end.toLong()
+    }
+    
+    private fun compact() {
+        // Start offset of each complete session, oldest first
+        val buffer = map(file)
+        val starts = ArrayList<Int>()
+        val end = maxOf(HEADER_SIZE.toLong(), completeEnd(buffer, starts)).toInt()
+        var keepFrom = end
+        for (i in starts.indices.reversed()) {
+            if (end - starts[i] > maxBytes / 2) {
+                break
+            }
+            keepFrom = starts[i]
+        }
+        val out = ByteBuffer.allocate(HEADER_SIZE + end - keepFrom)
+        out.putInt(MAGIC)
+        out.put(VERSION.toByte())
+        if (buffer != null && end > keepFrom) {
+            buffer.limit(end)
+            buffer.position(keepFrom)
+            out.put(buffer)
+        }
+        out.flip()
+        val tmp = File(file.path + ".tmp")
+        FileOutputStream(tmp).use { it.channel.write(out) }
+        if (!tmp.renameTo(file)) {
+            throw IOException("Failed to replace ${file.name}")
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.stepalarm
+
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+// Stages of one alarm session, in the order they normally happen
+enum class TimelineStage {
+    SCHEDULED,          // Fire time AlarmManager was asked for
+    RECEIVED,           // AlarmReceiver.onReceive entered
+    DB_LOOKUP_DONE,     // Alarm read and checked
+    SOUND_STARTED,      // MediaPlayer.start returned
+    ACTIVITY_CREATED,   // AlarmActivity.onCreate entered
+    FIRST_FRAME,        // AlarmActivity drew its first frame
+    SERVICE_CONNECTED,  // AlarmActivity bound to StepCounterService
+    SENSOR_REGISTERED,  // Step sensor listener registered
+    FIRST_SENSOR_EVENT, // First sensor event delivered while counting
+    FIRST_STEP,         // First step counted
+    TARGET_REACHED,     // Required steps walked
+    RELEASED            // Sound, vibration and watchdog released
+}
+
+/**
+ * Stage times of one alarm session as millisecond offsets from RECEIVED, taken from the
+ * monotonic elapsed-realtime clock; SCHEDULED is the only stage before it. Kept in an
+ * append-only file of fixed-size records that AlarmTimeline trims to the newest ones.
+ *
+ * File: magic (4) | version (1) | records
+ * Record: receivedAtMillis, wall clock (8) | alarm id (8) | steps counted (4) | one int offset per stage (4 each)
+ */
+class TimelineRecord(
+    val receivedAtMillis: Long,
+    val alarmId: Long,
+    val steps: Int,
+    private val offsets: IntArray
+) {
+    init {
+        require(offsets.size == STAGE_COUNT) { "Expected $STAGE_COUNT stage offsets" }
+    }
+    
+    companion object {
+        const val MISSING = Int.MIN_VALUE
+        private val STAGE_COUNT = TimelineStage.values().size
+        private const val MAGIC = 0x53415449 // "SATI"
+        private const val VERSION = 2
+        private const val HEADER_SIZE = 5
+        private val RECORD_SIZE = 20 + 4 * STAGE_COUNT
+        
+        // Null if the file is missing, unreadable or written in another format
+        @JvmStatic
+        fun readAll(file: File): List<TimelineRecord>? {
+            if (!file.exists()) {
+                return null
+            }
+            return try {
+                RandomAccessFile(file, "r").use { raf ->
+                    val buffer = raf.channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+                    if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.get().toInt() != VERSION) {
+                        return null
+                    }
+                    // A record cut short by a crash mid-append is dropped
+                    val records = ArrayList<TimelineRecord>(buffer.remaining() / RECORD_SIZE)
+                    while (buffer.remaining() >= RECORD_SIZE) {
+                        records.add(read(buffer))
+                    }
+                    records
+                }
+            } catch (e: IOException) {
+                null
+            }
+        }
+        
+        /**
+         * Appends one record. Once the file holds maxRecords, it is rewritten with the newest
+         * half, so the cost of trimming is spread over many appends.
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun append(file: File, record: TimelineRecord, maxRecords: Int) {
+            val size = if (file.exists()) file.length() else 0L
+            val count = (size - HEADER_SIZE) / RECORD_SIZE
+            if (size < HEADER_SIZE || count >= maxRecords || (size - HEADER_SIZE) % RECORD_SIZE != 0L) {
+                val kept = readAll(file)?.let { it.subList(maxOf(0, it.size - maxRecords / 2), it.size) }.orEmpty()
+                rewrite(file, kept + record)
+                return
+            }
+            val buffer = ByteBuffer.allocate(RECORD_SIZE)
+            record.write(buffer)
+            buffer.flip()
+            FileOutputStream(file, true).use { out -> out.channel.write(buffer) }
+        }
+        
+        /**
+         * Nearest-rank percentiles (0 to 100) of the time from one stage to another, over the
+         * records that reached both. Empty if none did.
+         */
+        @JvmStatic
+        fun percentiles(
+            records: List<TimelineRecord>,
+            from: TimelineStage,
+            to: TimelineStage,
+            vararg percents: Double
+        ): LongArray {
+            val durations = LongArray(records.size)
+            var count = 0
+            for (record in records) {
+                val duration = record.duration(from, to)
+                if (duration != MISSING) {
+                    durations[count++] = duration.toLong()
+                }
+            }
+            if (count == 0) {
+                return LongArray(0)
+            }
+            durations.sort(0, count)
+            return LongArray(percents.size) { i ->
+                val rank = Math.ceil(percents[i] / 100.0 * count).toInt().coerceIn(1, count)
+                durations[rank - 1]
+            }
+        }
+        
+        private fun rewrite(file: File, records: List<TimelineRecord>) {
+            val buffer = ByteBuffer.allocate(HEADER_SIZE + records.size * RECORD_SIZE)
+            buffer.putInt(MAGIC)
+            buffer.put(VERSION.toByte())
+            records.forEach { it.write(buffer) }
+            buffer.flip()
+            val tmp = File(file.path + ".tmp")
+            FileOutputStream(tmp).use { out -> out.channel.write(buffer) }
+            if (!tmp.renameTo(file)) {
+                throw IOException("Failed to replace ${file.name}")
+            }
+        }
+        
+        private fun read(buffer: ByteBuffer): TimelineRecord {
+            val receivedAtMillis = buffer.getLong()
+            val alarmId = buffer.getLong()
+            val steps = buffer.getInt()
+            return TimelineRecord(receivedAtMillis, alarmId, steps, IntArray(STAGE_COUNT) { buffer.getInt() })
+        }
+    }
+    
+    // Milliseconds from RECEIVED to the stage, or MISSING if the session never reached it
+    fun offset(stage: TimelineStage): Int = offsets[stage.ordinal]
+    
+    // Milliseconds from one stage to another, or MISSING unless both were reached
+    fun duration(from: TimelineStage, to: TimelineStage): Int {
+        val start = offsets[from.ordinal]
+        val end = offsets[to.ordinal]
+        return if (start == MISSING || end == MISSING) MISSING else end - start
+    }
+    
+    private fun write(buffer: ByteBuffer) {
+        buffer.putLong(receivedAtMillis)
+        buffer.putLong(alarmId)
+        buffer.putInt(steps)
+        offsets.forEach { buffer.putInt(it) }
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.stepalarm
+
+import android.os.Build
+import android.os.Trace
+
+/**
+ * Trace sections and counters for Perfetto and systrace captures. Everything goes through
+ * a Backend: on a device it is android.os.Trace, which does nothing unless the app is being
+ * traced; on the plain JVM used by unit tests it is a no-op, so code that traces can run
+ * there unchanged. Tests can install their own backend to see what was emitted.
+ *
+ * Sections nest per thread and must be ended on the thread that began them, so always
+ * pair beginSection with endSection in a finally block.
+ */
+object Tracing {
+    interface Backend {
+        fun isEnabled(): Boolean
+        fun beginSection(name: String)
+        fun endSection()
+        fun setCounter(name: String, value: Long)
+    }
+    
+    private object NoOpBackend : Backend {
+        override fun isEnabled() = false
+        override fun beginSection(name: String) {}
+        override fun endSection() {}
+        override fun setCounter(name: String, value: Long) {}
+    }
+    
+    private object AndroidBackend : Backend {
+        // Trace.isEnabled and Trace.setCounter arrived in API 29; before that only sections are emitted
+        override fun isEnabled() = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && Trace.isEnabled()
+        
+        // Cheap when not tracing: the platform checks its own enabled flag first
+        override fun beginSection(name: String) = Trace.beginSection(name)
+        
+        override fun endSection() = Trace.endSection()
+        
+        override fun setCounter(name: String, value: Long) {
+            if (isEnabled()) {
+                Trace.setCounter(name, value)
+            }
+        }
+    }
+    
+    @Volatile
+    private var backend: Backend = if (isAndroidRuntime()) AndroidBackend else NoOpBackend
+    
+    private fun isAndroidRuntime() = "Dalvik" == System.getProperty("java.vm.name")
+    
+    // Check before building a section name or counter value that costs something to compute
+    @JvmStatic
+    fun isEnabled(): Boolean = backend.isEnabled()
+    
+    @JvmStatic
+    fun beginSection(name: String) = backend.beginSection(name)
+    
+    @JvmStatic
+    fun endSection() = backend.endSection()
+    
+    @JvmStatic
+    fun setCounter(name: String, value: Long) = backend.setCounter(name, value)
+    
+    // Null restores the default for the runtime
+    @JvmStatic
+    fun setBackend(newBackend: Backend?) {
+        backend = newBackend ?: if (isAndroidRuntime()) AndroidBackend else NoOpBackend
+    }
+}
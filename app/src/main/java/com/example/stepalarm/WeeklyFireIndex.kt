@@ -0,0 +1,247 @@
+package com.example.stepalarm
+
+import java.util.Arrays
+import java.util.Calendar
+
+/**
+ * Precomputed index of when enabled alarms fire within a week, one slot per minute
+ * (slot = (DAY_OF_WEEK - 1) * 1440 + minute of day). A bitmap marks occupied slots and
+ * a second one slots with more than one alarm; a sorted array of (slot, alarm id) keys
+ * maps slots back to alarms.
+ *
+ * One-time alarms go into every day, since their next occurrence is simply the next
+ * time their minute comes round. Alarms with a RecurrenceRule don't repeat weekly and
+ * are left out. Instances are immutable; withChanges() derives the next index from the
+ * changes of an AlarmDatabase batch.
+ */
+class WeeklyFireIndex private constructor(
+    private val occupied: LongArray,
+    private val conflicting: LongArray,
+    private val entries: LongArray
+) {
+    companion object {
+        const val MINUTES_PER_DAY = 1440
+        const val SLOTS_PER_WEEK = 7 * MINUTES_PER_DAY
+        private const val WORDS = (SLOTS_PER_WEEK + 63) / 64
+        private const val ID_BITS = 44
+        private const val ID_MASK = (1L shl ID_BITS) - 1
+        
+        @JvmField
+        val EMPTY = WeeklyFireIndex(LongArray(WORDS), LongArray(WORDS), LongArray(0))
+        
+        @JvmStatic
+        fun of(table: AlarmTable): WeeklyFireIndex {
+            var keys = LongArray(table.size * 7)
+            var count = 0
+            for (row in 0 until table.size) {
+                if (!table.isEnabled(row) || table.getRecurrence(row) != null) continue
+                val dayMask = effectiveDayMask(table.isRepeating(row), table.getRepeatDayMask(row))
+                for (day in 0 until 7) {
+                    if (dayMask and (1 shl day) != 0) {
+                        keys[count++] = key(day * MINUTES_PER_DAY + table.getMinuteOfDay(row), table.getId(row))
+                    }
+                }
+            }
+            keys = keys.copyOf(count)
+            Arrays.sort(keys)
+            val index = WeeklyFireIndex(LongArray(WORDS), LongArray(WORDS), keys)
+            index.rebuildBits(0, SLOTS_PER_WEEK)
+            return index
+        }
+        
+        @JvmStatic
+        fun slotOf(calendar: Calendar): Int {
+            return (calendar.get(Calendar.DAY_OF_WEEK) - 1) * MINUTES_PER_DAY +
+                calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE)
+        }
+        
+        @JvmStatic
+        fun currentSlot(nowMillis: Long = System.currentTimeMillis()): Int {
+            return slotOf(Calendar.getInstance().apply { timeInMillis = nowMillis })
+        }
+        
+        private fun effectiveDayMask(isRepeating: Boolean, repeatDayMask: Int): Int {
+            return if (isRepeating && repeatDayMask != 0) repeatDayMask else 0x7F
+        }
+        
+        private fun key(slot: Int, alarmId: Long): Long = (slot.toLong() shl ID_BITS) or alarmId
+        
+        private fun slotOfKey(key: Long): Int = (key ushr ID_BITS).toInt()
+        
+        private fun keysOf(alarm: Alarm): LongArray {
+            if (!alarm.isEnabled || alarm.recurrence != null) return LongArray(0)
+            val dayMask = effectiveDayMask(alarm.isRepeating, alarm.getRepeatDayMask())
+            val minuteOfDay = alarm.hour * 60 + alarm.minute
+            val keys = LongArray(Integer.bitCount(dayMask))
+            var count = 0
+            for (day in 0 until 7) {
+                if (dayMask and (1 shl day) != 0) {
+                    keys[count++] = key(day * MINUTES_PER_DAY + minuteOfDay, alarm.id)
+                }
+            }
+            return keys
+        }
+    }
+    
+    // Applies a batch's changes: only the slots of the changed alarms are touched
+    fun withChanges(changes: List<AlarmDatabase.Change>): WeeklyFireIndex {
+        val removed = ArrayList<Long>()
+        val added = ArrayList<Long>()
+        changes.forEach { change ->
+            change.before?.let { alarm -> keysOf(alarm).forEach { removed.add(it) } }
+            change.after?.let { alarm -> keysOf(alarm).forEach { added.add(it) } }
+        }
+        if (removed.isEmpty() && added.isEmpty()) {
+            return this
+        }
+        val removedKeys = removed.toLongArray().also { Arrays.sort(it) }
+        val addedKeys = added.toLongArray().also { Arrays.sort(it) }
+        
+        // Merge the sorted entries with the additions, dropping removed keys
+        val merged = LongArray(entries.size + addedKeys.size)
+        var count = 0
+        var i = 0
+        var j = 0
+        while (i < entries.size || j < addedKeys.size) {
+            val next = if (j >= addedKeys.size || (i < entries.size && entries[i] <= addedKeys[j])) {
+                entries[i++]
+            } else {
+                addedKeys[j++]
+            }
+            if (Arrays.binarySearch(removedKeys, next) >= 0 && Arrays.binarySearch(addedKeys, next) < 0) {
+                continue
+            }
+            if (count > 0 && merged[count - 1] == next) {
+                continue
+            }
+            merged[count++] = next
+        }
+        
+        val index = WeeklyFireIndex(occupied.copyOf(), conflicting.copyOf(), merged.copyOf(count))
+        removedKeys.forEach { index.rebuildBits(slotOfKey(it), slotOfKey(it) + 1) }
+        addedKeys.forEach { index.rebuildBits(slotOfKey(it), slotOfKey(it) + 1) }
+        return index
+    }
+    
+    // Next occupied slot at or after fromSlot, wrapping around the week; -1 if there are no enabled alarms
+    fun nextOccupiedSlot(fromSlot: Int): Int {
+        val start = ((fromSlot % SLOTS_PER_WEEK) + SLOTS_PER_WEEK) % SLOTS_PER_WEEK
+        var found = nextSetBit(occupied, start, SLOTS_PER_WEEK)
+        if (found < 0) {
+            found = nextSetBit(occupied, 0, start)
+        }
+        return found
+    }
+    
+    /**
+     * Wall clock time of the next minute at which any enabled alarm fires, or -1. Slots are
+     * local days and minutes, so the time is resolved on the slot's day rather than by
+     * adding minutes, which would be an hour off across a DST change.
+     */
+    @JvmOverloads
+    fun nextFireTime(
+        nowMillis: Long = System.currentTimeMillis(),
+        calculator: NextFireTimeCalculator = NextFireTimeCalculator.systemDefault()
+    ): Long {
+        val today = calculator.localEpochDay(nowMillis)
+        val dayStartSlot = NextFireTimeCalculator.dayOfWeekIndex(today) * MINUTES_PER_DAY
+        val currentSlot = dayStartSlot + calculator.localMinuteOfDay(nowMillis)
+        // An alarm in the current minute has already fired
+        var minutesAhead = 1
+        while (minutesAhead <= SLOTS_PER_WEEK) {
+            val next = nextOccupiedSlot(currentSlot + minutesAhead)
+            if (next < 0) {
+                return -1
+            }
+            minutesAhead += Math.floorMod(next - currentSlot - minutesAhead, SLOTS_PER_WEEK)
+            val slotFromDayStart = currentSlot + minutesAhead - dayStartSlot
+            val fireTime = calculator.fireTimeOnDay(today + slotFromDayStart / MINUTES_PER_DAY,
+                slotFromDayStart % MINUTES_PER_DAY)
+            // A minute repeated by a fall-back overlap resolves to its first occurrence, which may have passed
+            if (fireTime > nowMillis) {
+                return fireTime
+            }
+            minutesAhead++
+        }
+        return -1
+    }
+    
+    fun alarmsAt(slot: Int): LongArray {
+        val from = lowerBound(key(slot, 0))
+        val to = lowerBound(key(slot + 1, 0))
+        return LongArray(to - from) { entries[from + it] and ID_MASK }
+    }
+    
+    fun hasConflict(slot: Int): Boolean = isSet(conflicting, slot)
+    
+    fun hasConflicts(): Boolean = conflicting.any { it != 0L }
+    
+    // All slots in which more than one alarm fires
+    fun conflictingSlots(): IntArray {
+        val slots = ArrayList<Int>()
+        var slot = nextSetBit(conflicting, 0, SLOTS_PER_WEEK)
+        while (slot >= 0) {
+            slots.add(slot)
+            slot = nextSetBit(conflicting, slot + 1, SLOTS_PER_WEEK)
+        }
+        return slots.toIntArray()
+    }
+    
+    // Other enabled alarms that fire in any of the same minutes as this one
+    fun conflictsWith(alarm: Alarm): Set<Long> {
+        val others = LinkedHashSet<Long>()
+        keysOf(alarm).forEach { key ->
+            alarmsAt(slotOfKey(key)).forEach { id -> if (id != alarm.id) others.add(id) }
+        }
+        return others
+    }
+    
+    private fun rebuildBits(fromSlot: Int, toSlot: Int) {
+        var slot = fromSlot
+        var position = lowerBound(key(fromSlot, 0))
+        while (slot < toSlot) {
+            var count = 0
+            while (position < entries.size && slotOfKey(entries[position]) == slot) {
+                count++
+                position++
+            }
+            setBit(occupied, slot, count > 0)
+            setBit(conflicting, slot, count > 1)
+            slot++
+        }
+    }
+    
+    private fun lowerBound(key: Long): Int {
+        var low = 0
+        var high = entries.size
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (entries[mid] < key) low = mid + 1 else high = mid
+        }
+        return low
+    }
+    
+    private fun isSet(bits: LongArray, slot: Int): Boolean {
+        return bits[slot ushr 6] and (1L shl slot) != 0L
+    }
+    
+    private fun setBit(bits: LongArray, slot: Int, value: Boolean) {
+        val word = slot ushr 6
+        bits[word] = if (value) bits[word] or (1L shl slot) else bits[word] and (1L shl slot).inv()
+    }
+    
+    private fun nextSetBit(bits: LongArray, from: Int, until: Int): Int {
+        if (from >= until) return -1
+        var word = from ushr 6
+        var current = bits[word] and (-1L shl from)
+        while (true) {
+            if (current != 0L) {
+                val slot = (word shl 6) + java.lang.Long.numberOfTrailingZeros(current)
+                return if (slot < until) slot else -1
+            }
+            word++
+            if (word >= bits.size || (word shl 6) >= until) return -1
+            current = bits[word]
+        }
+    }
+}
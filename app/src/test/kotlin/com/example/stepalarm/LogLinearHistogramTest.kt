@@ -0,0 +1,73 @@
+package com.example.stepalarm
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+import kotlin.concurrent.thread
+
+class LogLinearHistogramTest {
+    @Test
+    fun smallValues_areExact() {
+        val histogram = LogLinearHistogram(1_000_000)
+        (0L..63L).forEach { histogram.record(it) }
+        
+        assertEquals(64, histogram.count)
+        assertEquals(63, histogram.max)
+        assertEquals(31, histogram.mean)
+        assertEquals(31, histogram.valueAtPercentile(50.0))
+        assertEquals(0, histogram.valueAtPercentile(0.0))
+        assertEquals(63, histogram.valueAtPercentile(100.0))
+    }
+    
+    @Test
+    fun percentiles_matchSortedValues_withinBucketWidth() {
+        val random = Random(7)
+        val histogram = LogLinearHistogram(60_000_000)
+        val values = LongArray(20_000) { (Math.exp(random.nextDouble() * 17)).toLong() }
+        values.forEach { histogram.record(it) }
+        values.sort()
+        
+        for (percent in listOf(1.0, 10.0, 50.0, 90.0, 99.0, 99.9)) {
+            val rank = Math.ceil(percent / 100.0 * values.size).toInt()
+            val exact = values[rank - 1]
+            val reported = histogram.valueAtPercentile(percent)
+            assertTrue("p$percent: $reported < $exact", reported >= exact)
+            assertTrue("p$percent: $reported too far above $exact", reported <= exact + exact / 16)
+        }
+        assertEquals(values.last(), histogram.valueAtPercentile(100.0))
+    }
+    
+    @Test
+    fun outOfRangeValues_areClamped() {
+        val histogram = LogLinearHistogram(1_000)
+        histogram.record(-5)
+        histogram.record(5_000_000)
+        
+        assertEquals(2, histogram.count)
+        assertEquals(0, histogram.valueAtPercentile(50.0))
+        assertEquals(1_000, histogram.max)
+        assertEquals(1_000, histogram.valueAtPercentile(100.0))
+    }
+    
+    @Test
+    fun reset_clearsEverything() {
+        val histogram = LogLinearHistogram(1_000)
+        histogram.record(400)
+        histogram.reset()
+        
+        assertEquals(0, histogram.count)
+        assertEquals(0, histogram.max)
+        assertEquals(0, histogram.valueAtPercentile(99.0))
+    }
+    
+    @Test
+    fun concurrentRecords_areAllCounted() {
+        val histogram = LogLinearHistogram(1_000_000)
+        val threads = (1..4).map { t -> thread { repeat(50_000) { histogram.record((it * t % 5_000).toLong()) } } }
+        threads.forEach { it.join() }
+        
+        assertEquals(200_000, histogram.count)
+        assertEquals(4_999, histogram.max)
+    }
+}
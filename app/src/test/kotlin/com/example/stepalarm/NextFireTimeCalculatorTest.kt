@@ -0,0 +1,158 @@
+package com.example.stepalarm
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import java.time.Instant
+import java.time.LocalDate
+import java.time.LocalDateTime
+import java.time.LocalTime
+import java.time.ZoneId
+import java.time.ZonedDateTime
+import java.util.Random
+
+class NextFireTimeCalculatorTest {
+    private val zones = listOf(
+        "UTC",
+        "Europe/London",
+        "Europe/Berlin",
+        "America/New_York",
+        "America/Sao_Paulo",
+        "America/St_Johns",
+        "Asia/Kolkata",
+        "Asia/Tehran",
+        "Australia/Lord_Howe", // 30 minute DST shift
+        "Pacific/Apia",        // skipped 2011-12-30 entirely
+        "Pacific/Chatham"
+    )
+
+    private val from = LocalDate.of(2000, 1, 1).atStartOfDay().toEpochSecond(java.time.ZoneOffset.UTC) * 1000
+    private val to = LocalDate.of(2040, 1, 1).atStartOfDay().toEpochSecond(java.time.ZoneOffset.UTC) * 1000
+
+    // Straightforward java.time version: first matching local day whose resolved time is after the instant
+    private fun expected(zone: ZoneId, minuteOfDay: Int, dayMask: Int, afterMillis: Long): Long {
+        val time = LocalTime.of(minuteOfDay / 60, minuteOfDay % 60)
+        var date = Instant.ofEpochMilli(afterMillis).atZone(zone).toLocalDate().minusDays(1)
+        repeat(10) {
+            val dayIndex = date.dayOfWeek.value % 7 // Sunday = 0, as in Calendar.DAY_OF_WEEK - 1
+            if (dayMask and (1 shl dayIndex) != 0) {
+                val fire = ZonedDateTime.of(date, time, zone).toInstant().toEpochMilli()
+                if (fire > afterMillis) {
+                    return fire
+                }
+            }
+            date = date.plusDays(1)
+        }
+        throw AssertionError("No fire time within 10 days")
+    }
+
+    @Test
+    fun matchesJavaTimeForRandomInstantsAcrossZonesAndYears() {
+        val random = Random(41)
+        for (zoneName in zones) {
+            val zone = ZoneId.of(zoneName)
+            val calculator = NextFireTimeCalculator(zone)
+            repeat(20_000) {
+                val after = from + (random.nextDouble() * (to - from)).toLong()
+                val minuteOfDay = random.nextInt(1440)
+                val dayMask = 1 + random.nextInt(NextFireTimeCalculator.ALL_DAYS)
+                assertEquals("$zoneName after ${Instant.ofEpochMilli(after)} at $minuteOfDay mask $dayMask",
+                    expected(zone, minuteOfDay, dayMask, after),
+                    calculator.nextFireTime(minuteOfDay, dayMask, after))
+            }
+        }
+    }
+
+    @Test
+    fun matchesJavaTimeAroundEveryTransition() {
+        for (zoneName in zones) {
+            val zone = ZoneId.of(zoneName)
+            val calculator = NextFireTimeCalculator(zone)
+            var transition = zone.rules.nextTransition(Instant.ofEpochMilli(from))
+            while (transition != null && transition.instant.toEpochMilli() < to) {
+                val at = transition.instant.toEpochMilli()
+                // Every alarm time within two hours of the transition's local time, from just before and just after it
+                val localMinute = transition.dateTimeBefore.toLocalTime().toSecondOfDay() / 60
+                for (delta in -120..120 step 15) {
+                    val minuteOfDay = Math.floorMod(localMinute + delta, 1440)
+                    for (after in longArrayOf(at - 3 * 3600_000L, at - 1, at, at + 1, at + 3600_000L)) {
+                        assertEquals("$zoneName around $transition at $minuteOfDay after $after",
+                            expected(zone, minuteOfDay, NextFireTimeCalculator.ALL_DAYS, after),
+                            calculator.nextFireTime(minuteOfDay, NextFireTimeCalculator.ALL_DAYS, after))
+                    }
+                }
+                transition = zone.rules.nextTransition(transition.instant)
+            }
+        }
+    }
+
+    @Test
+    fun resultIsAfterTheInstantOnAMaskedDayAndWithinAWeek() {
+        val random = Random(7)
+        val zone = ZoneId.of("Europe/Berlin")
+        val calculator = NextFireTimeCalculator(zone)
+        repeat(50_000) {
+            val after = from + (random.nextDouble() * (to - from)).toLong()
+            val minuteOfDay = random.nextInt(1440)
+            val dayMask = 1 + random.nextInt(NextFireTimeCalculator.ALL_DAYS)
+            val fire = calculator.nextFireTime(minuteOfDay, dayMask, after)
+            assertTrue(fire > after)
+            assertTrue(fire - after <= 7 * 24 * 3600_000L + 3600_000L)
+            val local = Instant.ofEpochMilli(fire).atZone(zone)
+            assertTrue(dayMask and (1 shl (local.dayOfWeek.value % 7)) != 0)
+        }
+    }
+
+    @Test
+    fun springForwardGapMovesForwardByTheGap() {
+        val zone = ZoneId.of("America/New_York")
+        val calculator = NextFireTimeCalculator(zone)
+        val after = LocalDateTime.of(2024, 3, 10, 0, 0).atZone(zone).toInstant().toEpochMilli()
+        val fire = calculator.nextFireTime(2, 30, NextFireTimeCalculator.ALL_DAYS, after)
+        assertEquals(LocalDateTime.of(2024, 3, 10, 3, 30), Instant.ofEpochMilli(fire).atZone(zone).toLocalDateTime())
+    }
+
+    @Test
+    fun fallBackOverlapFiresOnlyOnce() {
+        val zone = ZoneId.of("America/New_York")
+        val calculator = NextFireTimeCalculator(zone)
+        val after = LocalDateTime.of(2024, 11, 3, 0, 0).atZone(zone).toInstant().toEpochMilli()
+        val first = calculator.nextFireTime(1, 30, NextFireTimeCalculator.ALL_DAYS, after)
+        assertEquals(LocalDateTime.of(2024, 11, 3, 5, 30), Instant.ofEpochMilli(first).atZone(java.time.ZoneOffset.UTC).toLocalDateTime())
+        // The repeated 01:30 an hour later is skipped
+        val second = calculator.nextFireTime(1, 30, NextFireTimeCalculator.ALL_DAYS, first)
+        assertEquals(LocalDateTime.of(2024, 11, 4, 1, 30), Instant.ofEpochMilli(second).atZone(zone).toLocalDateTime())
+    }
+
+    @Test
+    fun emptyMaskHasNoFireTime() {
+        assertEquals(-1L, NextFireTimeCalculator(ZoneId.of("UTC")).nextFireTime(420, 0, 0L))
+    }
+
+    @Test
+    fun doesNotAllocateInSteadyState() {
+        val threads = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+        assumeTrue(threads != null && threads.isThreadAllocatedMemorySupported)
+        threads!!.isThreadAllocatedMemoryEnabled = true
+
+        val calculator = NextFireTimeCalculator(ZoneId.of("Europe/Berlin"))
+        // Mid-June: far from any transition, so the offset cache never reloads
+        val start = LocalDateTime.of(2024, 6, 1, 0, 0).atZone(ZoneId.of("Europe/Berlin")).toInstant().toEpochMilli()
+        var sink = 0L
+        for (i in 0 until 100_000) {
+            sink += calculator.nextFireTime(i % 1440, 1 + i % NextFireTimeCalculator.ALL_DAYS, start + i * 1000L)
+        }
+
+        val threadId = Thread.currentThread().id
+        val before = threads.getThreadAllocatedBytes(threadId)
+        for (i in 0 until 100_000) {
+            sink += calculator.nextFireTime(i % 1440, 1 + i % NextFireTimeCalculator.ALL_DAYS, start + i * 1000L)
+        }
+        val allocated = threads.getThreadAllocatedBytes(threadId) - before
+        assertTrue(sink != 0L)
+        // Allow for the measurement itself, but not for a single object per call
+        assertTrue("Allocated $allocated bytes", allocated < 10_000)
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.stepalarm
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.time.LocalDate
+import java.time.ZoneId
+import java.util.Arrays
+import java.util.Random
+
+/**
+ * Walks a year of next-occurrence queries over thousands of rules, the way the
+ * scheduler re-arms them, and checks every answer. The walk is bounded by the ringing
+ * days of the year, so a query that lost its place would fail rather than run long.
+ */
+class RecurrenceRuleBenchmark {
+    private val ruleCount = 5_000
+    private val zone = ZoneId.of("Europe/Berlin")
+
+    private fun rules(): List<Pair<RecurrenceRule, Int>> {
+        val random = Random(1)
+        val anchor = LocalDate.of(2024, 1, 1).toEpochDay()
+        return List(ruleCount) { i ->
+            val pattern = when (i % 4) {
+                0 -> RecurrenceRule.Pattern.Weekly(1 + random.nextInt(NextFireTimeCalculator.ALL_DAYS))
+                1 -> RecurrenceRule.Pattern.EveryNDays(2 + random.nextInt(14), anchor - random.nextInt(100))
+                2 -> RecurrenceRule.Pattern.NthWeekdayOfMonth(1 + random.nextInt(5), 1 + random.nextInt(7))
+                else -> RecurrenceRule.Pattern.Rotation(0b1111L or (0b11L shl 8), 14, anchor - random.nextInt(100))
+            }
+            val skipDays = LongArray(random.nextInt(10)) { anchor + random.nextInt(365) }
+            RecurrenceRule(pattern, skipDays) to random.nextInt(1440)
+        }
+    }
+
+    @Test
+    fun nextFireTimeOverAYearOfThousandsOfRules() {
+        val calculator = NextFireTimeCalculator(zone)
+        val firstDay = LocalDate.of(2024, 1, 1).toEpochDay()
+        val lastDay = LocalDate.of(2024, 12, 31).toEpochDay()
+        val start = calculator.fireTimeOnDay(firstDay, 0) - 1
+        val end = calculator.fireTimeOnDay(lastDay + 1, 0)
+        var queries = 0
+
+        for ((rule, minute) in rules()) {
+            var after = start
+            var expectedDay = rule.nextDay(firstDay)
+            while (true) {
+                val fireTime = rule.nextFireTime(minute, after, calculator)
+                queries++
+                if (fireTime < 0 || fireTime >= end) {
+                    assertTrue("$rule skipped ${LocalDate.ofEpochDay(expectedDay)}", expectedDay > lastDay)
+                    break
+                }
+                val day = calculator.localEpochDay(fireTime)
+                assertEquals("$rule after $after", expectedDay, day)
+                assertTrue(Arrays.binarySearch(rule.skipDays, day) < 0)
+                assertTrue(fireTime > after)
+                // At most one answer per ringing day, so the walk ends within the year
+                assertTrue(queries <= ruleCount * 367)
+                after = fireTime
+                expectedDay = rule.nextDay(day + 1)
+            }
+        }
+        assertTrue(queries > ruleCount)
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.stepalarm
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.time.LocalDate
+import java.time.LocalDateTime
+import java.time.ZoneId
+import java.util.Random
+
+class RecurrenceRuleTest {
+    private val from = LocalDate.of(1990, 1, 1).toEpochDay()
+    private val to = LocalDate.of(2060, 1, 1).toEpochDay()
+    
+    // Direct day-by-day definition of each pattern, independent of the compiled matchers
+    private fun rings(rule: RecurrenceRule, epochDay: Long): Boolean {
+        if (rule.skipDays.contains(epochDay)) {
+            return false
+        }
+        val date = LocalDate.ofEpochDay(epochDay)
+        return when (val pattern = rule.pattern) {
+            is RecurrenceRule.Pattern.Weekly -> pattern.dayMask and (1 shl (date.dayOfWeek.value % 7)) != 0
+            is RecurrenceRule.Pattern.EveryNDays ->
+                epochDay >= pattern.anchorEpochDay && (epochDay - pattern.anchorEpochDay) % pattern.interval == 0L
+            is RecurrenceRule.Pattern.NthWeekdayOfMonth -> {
+                val sameDay = date.dayOfWeek.value % 7 == pattern.dayOfWeek - 1
+                val ordinalMatches = if (pattern.ordinal == -1) {
+                    date.dayOfMonth + 7 > date.lengthOfMonth()
+                } else {
+                    (date.dayOfMonth - 1) / 7 + 1 == pattern.ordinal
+                }
+                sameDay && ordinalMatches
+            }
+            is RecurrenceRule.Pattern.Rotation -> epochDay >= pattern.anchorEpochDay &&
+                pattern.onDays and (1L shl ((epochDay - pattern.anchorEpochDay) % pattern.length).toInt()) != 0L
+        }
+    }
+    
+    private fun expectedNextDay(rule: RecurrenceRule, fromDay: Long): Long {
+        var day = fromDay
+        while (!rings(rule, day)) {
+            day++
+            assertTrue("No ringing day within 500 days for $rule", day - fromDay < 500)
+        }
+        return day
+    }
+    
+    private fun randomRule(random: Random, anchor: Long): RecurrenceRule {
+        val pattern = when (random.nextInt(4)) {
+            0 -> RecurrenceRule.Pattern.Weekly(1 + random.nextInt(NextFireTimeCalculator.ALL_DAYS))
+            1 -> RecurrenceRule.Pattern.EveryNDays(1 + random.nextInt(30), anchor)
+            2 -> RecurrenceRule.Pattern.NthWeekdayOfMonth(
+                if (random.nextInt(6) == 0) -1 else 1 + random.nextInt(5), 1 + random.nextInt(7))
+            else -> {
+                val length = 1 + random.nextInt(RecurrenceRule.MAX_ROTATION_LENGTH)
+                var onDays = random.nextLong()
+                if (length < 64) onDays = onDays and ((1L shl length) - 1)
+                if (onDays == 0L) onDays = 1L
+                RecurrenceRule.Pattern.Rotation(onDays, length, anchor)
+            }
+        }
+        val skipDays = LongArray(random.nextInt(4)) { anchor + random.nextInt(60) }
+        return RecurrenceRule(pattern, skipDays)
+    }
+    
+    @Test
+    fun nextDayMatchesTheDayByDayDefinition() {
+        val random = Random(42)
+        repeat(5_000) {
+            val anchor = from + random.nextInt((to - from).toInt())
+            val rule = randomRule(random, anchor)
+            repeat(20) {
+                // Mostly after the anchor, sometimes shortly before it
+                val fromDay = anchor - 100 + random.nextInt(4000)
+                assertEquals("$rule from ${LocalDate.ofEpochDay(fromDay)}",
+                    expectedNextDay(rule, fromDay), rule.nextDay(fromDay))
+            }
+        }
+    }
+    
+    @Test
+    fun everyFifthWeekdayIsFoundAcrossFourHundredYears() {
+        for (dayOfWeek in 1..7) {
+            val rule = RecurrenceRule(RecurrenceRule.Pattern.NthWeekdayOfMonth(5, dayOfWeek))
+            var day = LocalDate.of(2000, 1, 1).toEpochDay()
+            val end = LocalDate.of(2400, 1, 1).toEpochDay()
+            while (day < end) {
+                val next = rule.nextDay(day)
+                assertEquals(expectedNextDay(rule, day), next)
+                day = next + 1
+            }
+        }
+    }
+    
+    @Test
+    fun monthArithmeticMatchesJavaTime() {
+        var day = LocalDate.of(1600, 1, 1).toEpochDay()
+        val end = LocalDate.of(2500, 1, 1).toEpochDay()
+        while (day < end) {
+            val date = LocalDate.ofEpochDay(day)
+            val monthIndex = RecurrenceRule.monthIndexOf(day)
+            assertEquals(date.year * 12L + date.monthValue - 1, monthIndex)
+            assertEquals(date.withDayOfMonth(1).toEpochDay(), RecurrenceRule.firstDayOfMonth(monthIndex))
+            day += 13
+        }
+    }
+    
+    @Test
+    fun encodeAndParseRoundTrip() {
+        val random = Random(3)
+        repeat(1_000) {
+            val rule = randomRule(random, from + random.nextInt((to - from).toInt()))
+            assertEquals(rule, RecurrenceRule.parse(rule.encode()))
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException::class)
+    fun parseRejectsUnknownRules() {
+        RecurrenceRule.parse("fortnightly:2")
+    }
+    
+    @Test
+    fun nextFireTimeUsesLocalTimeOnTheRingingDay() {
+        val zone = ZoneId.of("Europe/Berlin")
+        val calculator = NextFireTimeCalculator(zone)
+        // Second Tuesday of the month at 06:15
+        val rule = RecurrenceRule(RecurrenceRule.Pattern.NthWeekdayOfMonth(2, 3))
+        val after = LocalDateTime.of(2024, 3, 12, 6, 15).atZone(zone).toInstant().toEpochMilli()
+        val fire = rule.nextFireTime(6 * 60 + 15, after, calculator)
+        assertEquals(LocalDateTime.of(2024, 4, 9, 6, 15).atZone(zone).toInstant().toEpochMilli(), fire)
+    }
+    
+    @Test
+    fun skipDatesAreNeverReturned() {
+        val anchor = LocalDate.of(2024, 1, 1).toEpochDay()
+        // Four on, four off, with the whole first block skipped
+        val rule = RecurrenceRule(RecurrenceRule.Pattern.Rotation(0b1111L, 8, anchor),
+            longArrayOf(anchor, anchor + 1, anchor + 2, anchor + 3))
+        assertEquals(anchor + 8, rule.nextDay(anchor))
+    }
+}
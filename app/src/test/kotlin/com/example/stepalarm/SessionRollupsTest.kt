@@ -0,0 +1,168 @@
+package com.example.stepalarm
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.time.DayOfWeek
+import java.time.LocalDate
+import java.time.ZoneId
+import java.time.ZoneOffset
+import java.util.Random
+
+class SessionRollupsTest {
+    private val zone: ZoneId = ZoneOffset.UTC
+    private lateinit var file: File
+    
+    @Before
+    fun setUp() {
+        file = File.createTempFile("rollups", ".bin")
+        file.delete()
+    }
+    
+    @After
+    fun tearDown() {
+        file.delete()
+    }
+    
+    private fun session(
+        date: LocalDate,
+        alarmId: Long,
+        lateMs: Int = 0,
+        reached: Boolean = true,
+        steps: Int = 10,
+        walkMs: Int = 6_000,
+        ringMs: Int = 8_000
+    ): TimelineRecord {
+        val offsets = IntArray(TimelineStage.values().size) { TimelineRecord.MISSING }
+        offsets[TimelineStage.SCHEDULED.ordinal] = -lateMs
+        offsets[TimelineStage.RECEIVED.ordinal] = 0
+        offsets[TimelineStage.SOUND_STARTED.ordinal] = 100
+        offsets[TimelineStage.SENSOR_REGISTERED.ordinal] = 1_000
+        if (reached) {
+            offsets[TimelineStage.TARGET_REACHED.ordinal] = 1_000 + walkMs
+        }
+        offsets[TimelineStage.RELEASED.ordinal] = 100 + ringMs
+        val receivedAt = date.atTime(7, 0).toInstant(ZoneOffset.UTC).toEpochMilli()
+        return TimelineRecord(receivedAt, alarmId, steps, offsets)
+    }
+    
+    private fun assertSame(expected: SessionRollups.Rollup?, actual: SessionRollups.Rollup?) {
+        if (expected == null || actual == null) {
+            assertEquals(expected == null, actual == null)
+            return
+        }
+        assertEquals(expected.sessions, actual.sessions)
+        assertEquals(expected.dismissed, actual.dismissed)
+        assertEquals(expected.missed, actual.missed)
+        assertEquals(expected.late, actual.late)
+        assertEquals(expected.ringSumMillis, actual.ringSumMillis)
+        assertEquals(expected.ringMaxMillis, actual.ringMaxMillis)
+        assertEquals(expected.steps, actual.steps)
+        assertEquals(expected.walkMillis, actual.walkMillis)
+    }
+    
+    @Test
+    fun queries_onMissingFile_returnNull() {
+        val rollups = SessionRollups(file)
+        assertNull(rollups.total())
+        assertNull(rollups.day(0))
+        assertNull(rollups.alarm(1))
+    }
+    
+    @Test
+    fun add_updatesEveryBucket() {
+        val rollups = SessionRollups(file)
+        val monday = LocalDate.of(2026, 10, 12)
+        rollups.add(session(monday, 1, ringMs = 30_000), zone)
+        rollups.add(session(monday, 2, lateMs = 120_000, reached = false, steps = 4), zone)
+        rollups.add(session(monday.plusDays(2), 1, lateMs = 30_000, walkMs = 3_000), zone)
+        
+        assertEquals(SessionRollups.FILE_SIZE.toLong(), file.length())
+        val day = rollups.day(monday.toEpochDay())!!
+        assertEquals(2, day.sessions)
+        assertEquals(1, day.dismissed)
+        assertEquals(1, day.missed)
+        assertEquals(1, day.late)
+        assertEquals(30_000, day.ringMaxMillis)
+        
+        val week = rollups.week(monday.plusDays(6).toEpochDay())!!
+        assertEquals(3, week.sessions)
+        assertNull(rollups.week(monday.plusDays(7).toEpochDay()))
+        
+        assertEquals(2, rollups.weekday(DayOfWeek.MONDAY)!!.sessions)
+        assertEquals(1, rollups.weekday(DayOfWeek.WEDNESDAY)!!.sessions)
+        assertNull(rollups.weekday(DayOfWeek.TUESDAY))
+        
+        val alarm = rollups.alarm(1)!!
+        assertEquals(2, alarm.sessions)
+        assertEquals(0, alarm.late)
+        // 20 steps over 6 s + 3 s of walking
+        assertEquals(20 * 60_000.0 / 9_000, alarm.stepsPerMinute, 1e-9)
+        assertEquals(3, rollups.total()!!.sessions)
+    }
+    
+    @Test
+    fun oldDaysAndAlarms_areEvicted() {
+        val rollups = SessionRollups(file)
+        val start = LocalDate.of(2026, 1, 1)
+        rollups.add(session(start, 1), zone)
+        rollups.add(session(start.plusDays(SessionRollups.DAY_SLOTS.toLong()), 2), zone)
+        
+        assertNull(rollups.day(start.toEpochDay()))
+        assertEquals(1, rollups.day(start.plusDays(SessionRollups.DAY_SLOTS.toLong()).toEpochDay())!!.sessions)
+        
+        for (id in 3L until 3L + SessionRollups.ALARM_SLOTS) {
+            rollups.add(session(start.plusDays(100 + id), id), zone)
+        }
+        // Alarm 1 was seen least recently, then alarm 2
+        assertNull(rollups.alarm(1))
+        assertNull(rollups.alarm(2))
+        assertEquals(1, rollups.alarm(3)!!.sessions)
+        assertEquals(2 + SessionRollups.ALARM_SLOTS, rollups.total()!!.sessions)
+    }
+    
+    @Test
+    fun rebuild_matchesIncrementalAdds() {
+        val random = Random(11)
+        val start = LocalDate.of(2026, 3, 1)
+        val records = (0 until 300).map {
+            session(start.plusDays(random.nextInt(200).toLong()), random.nextInt(40).toLong(),
+                lateMs = random.nextInt(200_000), reached = random.nextInt(5) > 0,
+                steps = 5 + random.nextInt(20), walkMs = 1_000 + random.nextInt(20_000),
+                ringMs = 1_000 + random.nextInt(60_000))
+        }.sortedBy { it.receivedAtMillis }
+        
+        val incremental = SessionRollups(file)
+        records.forEach { incremental.add(it, zone) }
+        val rebuiltFile = File(file.path + ".rebuilt")
+        try {
+            val rebuilt = SessionRollups(rebuiltFile)
+            rebuilt.rebuild(records, zone)
+            
+            assertSame(incremental.total(), rebuilt.total())
+            for (day in 0L until 220L) {
+                val epochDay = start.plusDays(day).toEpochDay()
+                assertSame(incremental.day(epochDay), rebuilt.day(epochDay))
+                assertSame(incremental.week(epochDay), rebuilt.week(epochDay))
+            }
+            DayOfWeek.values().forEach { assertSame(incremental.weekday(it), rebuilt.weekday(it)) }
+            (0L until 40L).forEach { assertSame(incremental.alarm(it), rebuilt.alarm(it)) }
+            assertEquals(300, rebuilt.total()!!.sessions)
+        } finally {
+            rebuiltFile.delete()
+        }
+    }
+    
+    @Test
+    fun foreignFile_isStartedOver() {
+        file.writeText("something else")
+        val rollups = SessionRollups(file)
+        assertNull(rollups.total())
+        
+        rollups.add(session(LocalDate.of(2026, 5, 5), 1), zone)
+        assertEquals(1, rollups.total()!!.sessions)
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.stepalarm
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.io.IOException
+
+class SnapshotStoreTest {
+    private lateinit var dir: File
+    private lateinit var file: File
+    private lateinit var marker: File
+
+    // Stands in for SQLite: the rows it would hold after each write
+    private var database: List<Alarm> = emptyList()
+
+    @Before
+    fun setUp() {
+        dir = File.createTempFile("snapshot", "")
+        dir.delete()
+        dir.mkdir()
+        file = File(dir, "alarms.bin")
+        marker = File(dir, "alarms.resync")
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    private fun table(vararg minutes: Int): AlarmTable {
+        val builder = AlarmTable.Builder(minutes.size)
+        minutes.forEachIndexed { i, minute ->
+            builder.add(i + 1L, minute, AlarmTable.packFlags(false, true, 0))
+        }
+        return builder.build()
+    }
+
+    // Applies the table the way AlarmDatabase does, whether as a resync or as the latest change
+    private fun commit(store: SnapshotStore, table: AlarmTable) {
+        store.commit(table) { database = table.asList() }
+    }
+
+    @Test
+    fun writesTheFileBeforeTheDatabase() {
+        val store = SnapshotStore(file, marker)
+        val table = table(420, 480)
+        store.commit(table) {
+            assertEquals(table.asList(), AlarmCodec.readFile(file)!!.asList())
+            assertTrue(marker.exists())
+            database = table.asList()
+        }
+        assertFalse(marker.exists())
+        assertEquals(table.asList(), database)
+    }
+
+    @Test
+    fun deathBeforeTheDatabaseWriteLeavesTheFileAheadAndResyncs() {
+        val store = SnapshotStore(file, marker)
+        commit(store, table(420))
+        val newer = table(420, 480)
+        try {
+            store.commit(newer) { throw IllegalStateException("process died") }
+            fail()
+        } catch (expected: IllegalStateException) {
+        }
+        assertEquals(table(420).asList(), database)
+
+        // The next process loads the newer file and rewrites the database from it
+        val restarted = SnapshotStore(file, marker)
+        val loaded = restarted.read()!!
+        assertEquals(newer.asList(), loaded.asList())
+        assertTrue(restarted.needsResync())
+        var resynced = false
+        restarted.commit(loaded) { resync ->
+            resynced = resync
+            database = loaded.asList()
+        }
+        assertTrue(resynced)
+        assertFalse(restarted.needsResync())
+        assertEquals(newer.asList(), database)
+    }
+
+    @Test
+    fun failedFileWriteLeavesTheDatabaseAsOldAsTheFile() {
+        val store = SnapshotStore(file, marker)
+        commit(store, table(420))
+        // A non-empty directory in the way makes replacing the file fail
+        file.delete()
+        file.mkdir()
+        File(file, "blocker").createNewFile()
+        try {
+            store.commit(table(420, 480)) { fail("SQLite must not get ahead of the snapshot") }
+            fail()
+        } catch (expected: IOException) {
+        }
+        assertEquals(table(420).asList(), database)
+        assertTrue(store.needsResync())
+    }
+
+    @Test
+    fun lockedCommitsKeepTheMarkerUntilTheDatabaseCatchesUp() {
+        val store = SnapshotStore(file, marker)
+        commit(store, table(420))
+        val locked = table(420, 480)
+        store.commit(locked, null)
+        assertTrue(store.needsResync())
+        assertEquals(locked.asList(), SnapshotStore(file, marker).read()!!.asList())
+
+        commit(store, locked)
+        assertFalse(store.needsResync())
+        assertEquals(locked.asList(), database)
+    }
+
+    @Test
+    fun unchangedTableSkipsTheFile() {
+        val store = SnapshotStore(file, marker)
+        val table = table(420)
+        commit(store, table)
+        file.delete()
+        commit(store, table)
+        assertNull(AlarmCodec.readFile(file))
+        assertFalse(store.needsResync())
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.stepalarm
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.nio.ByteBuffer
+
+class StepJournalTest {
+    private lateinit var file: File
+    
+    @Before
+    fun setUp() {
+        file = File.createTempFile("journal", ".bin")
+        file.delete()
+    }
+    
+    @After
+    fun tearDown() {
+        file.delete()
+    }
+    
+    private fun session(recorder: StepJournal.Recorder, alarmId: Long, stepMillis: LongArray): ByteArray {
+        val startNanos = 5_000_000_000L
+        recorder.start(alarmId, 18, 1_700_000_000_000L + alarmId, startNanos, 2)
+        stepMillis.forEach { recorder.step(startNanos + it * 1_000_000) }
+        return recorder.finish(startNanos + 9_000_000_000L)
+    }
+    
+    @Test
+    fun varint_roundTrips() {
+        val values = longArrayOf(0, 1, 127, 128, 300, 16_383, 16_384, Int.MAX_VALUE.toLong(), Long.MAX_VALUE, -1)
+        val buffer = ByteBuffer.allocate(values.size * 10)
+        values.forEach { StepJournal.putVarint(buffer, it) }
+        buffer.flip()
+        values.forEach { assertEquals(it, StepJournal.readVarint(buffer)) }
+    }
+    
+    @Test
+    fun readAll_missingFile_returnsNull() {
+        assertNull(StepJournal.readAll(file))
+    }
+    
+    @Test
+    fun append_readAll_roundTrips() {
+        val journal = StepJournal(file, 64 * 1024)
+        val recorder = StepJournal.Recorder()
+        journal.append(session(recorder, 7, longArrayOf(400, 950, 1_500, 1_500, 2_210)))
+        journal.append(session(recorder, -1, longArrayOf()))
+        
+        val sessions = StepJournal.readAll(file)!!
+        assertEquals(2, sessions.size)
+        val first = sessions[0]
+        assertEquals(7, first.alarmId)
+        assertEquals(18, first.sensorType)
+        assertEquals(1_700_000_000_007L, first.startMillis)
+        assertEquals(9_000, first.durationMillis)
+        assertEquals(2, first.resumedSteps)
+        assertArrayEquals(longArrayOf(400, 950, 1_500, 1_500, 2_210), first.stepOffsets)
+        assertEquals(-1, sessions[1].alarmId)
+        assertEquals(0, sessions[1].stepOffsets.size)
+    }
+    
+    @Test
+    fun steps_areStoredCompactly() {
+        val recorder = StepJournal.Recorder()
+        val steps = LongArray(100) { 300L + it * 550 }
+        val entry = session(recorder, 1, steps)
+        // Header fields plus two bytes per step
+        assertTrue("${entry.size} bytes", entry.size <= 20 + 2 * steps.size)
+    }
+    
+    @Test
+    fun stepsBeforeStartOrOutOfOrder_areClamped() {
+        val recorder = StepJournal.Recorder()
+        val journal = StepJournal(file, 64 * 1024)
+        journal.append(session(recorder, 1, longArrayOf(-200, 300, 100)))
+        
+        assertArrayEquals(longArrayOf(0, 300, 300), StepJournal.readAll(file)!![0].stepOffsets)
+    }
+    
+    @Test
+    fun append_pastCap_keepsNewestSessions() {
+        val journal = StepJournal(file, 1_000)
+        val recorder = StepJournal.Recorder()
+        for (id in 1L..40L) {
+            journal.append(session(recorder, id, longArrayOf(100, 200, 300)))
+            assertTrue(file.length() <= 1_000)
+        }
+        
+        val ids = StepJournal.readAll(file)!!.map { it.alarmId }
+        assertEquals(40L, ids.last())
+        assertEquals((ids.first()..40L).toList(), ids)
+    }
+    
+    @Test
+    fun truncatedSession_isDroppedAndOverwrittenOnCompaction() {
+        val journal = StepJournal(file, 64 * 1024)
+        val recorder = StepJournal.Recorder()
+        journal.append(session(recorder, 1, longArrayOf(100)))
+        val partial = session(recorder, 2, longArrayOf(100, 200))
+        file.appendBytes(partial.copyOf(partial.size - 3))
+        
+        assertEquals(listOf(1L), StepJournal.readAll(file)!!.map { it.alarmId })
+        
+        StepJournal(file, 64 * 1024).append(session(recorder, 3, longArrayOf(100)))
+        assertEquals(listOf(1L, 3L), StepJournal.readAll(file)!!.map { it.alarmId })
+    }
+}
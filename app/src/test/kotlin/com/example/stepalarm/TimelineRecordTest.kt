@@ -0,0 +1,94 @@
+package com.example.stepalarm
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+
+class TimelineRecordTest {
+    private lateinit var file: File
+    
+    @Before
+    fun setUp() {
+        file = File.createTempFile("timelines", ".bin")
+        file.delete()
+    }
+    
+    @After
+    fun tearDown() {
+        file.delete()
+    }
+    
+    private fun record(id: Long, vararg stageOffsets: Pair<TimelineStage, Int>): TimelineRecord {
+        val offsets = IntArray(TimelineStage.values().size) { TimelineRecord.MISSING }
+        offsets[TimelineStage.RECEIVED.ordinal] = 0
+        stageOffsets.forEach { (stage, offset) -> offsets[stage.ordinal] = offset }
+        return TimelineRecord(1_700_000_000_000L + id, id, id.toInt() * 3, offsets)
+    }
+    
+    @Test
+    fun readAll_missingFile_returnsNull() {
+        assertNull(TimelineRecord.readAll(file))
+    }
+    
+    @Test
+    fun append_readAll_roundTrips() {
+        TimelineRecord.append(file, record(1, TimelineStage.SCHEDULED to -40, TimelineStage.SOUND_STARTED to 120), 16)
+        TimelineRecord.append(file, record(2, TimelineStage.FIRST_STEP to 3500), 16)
+        
+        val records = TimelineRecord.readAll(file)!!
+        assertEquals(listOf(1L, 2L), records.map { it.alarmId })
+        assertEquals(1_700_000_000_001L, records[0].receivedAtMillis)
+        assertEquals(6, records[1].steps)
+        assertEquals(-40, records[0].offset(TimelineStage.SCHEDULED))
+        assertEquals(160, records[0].duration(TimelineStage.SCHEDULED, TimelineStage.SOUND_STARTED))
+        assertEquals(TimelineRecord.MISSING, records[0].offset(TimelineStage.FIRST_STEP))
+        assertEquals(3500, records[1].offset(TimelineStage.FIRST_STEP))
+    }
+    
+    @Test
+    fun append_full_keepsNewestHalf() {
+        for (id in 1L..8L) {
+            TimelineRecord.append(file, record(id), 8)
+        }
+        assertEquals(8, TimelineRecord.readAll(file)!!.size)
+        
+        TimelineRecord.append(file, record(9), 8)
+        assertEquals(listOf(5L, 6L, 7L, 8L, 9L), TimelineRecord.readAll(file)!!.map { it.alarmId })
+    }
+    
+    @Test
+    fun append_truncatedRecord_isDropped() {
+        TimelineRecord.append(file, record(1), 8)
+        file.appendBytes(ByteArray(10))
+        
+        assertEquals(listOf(1L), TimelineRecord.readAll(file)!!.map { it.alarmId })
+        TimelineRecord.append(file, record(2), 8)
+        assertEquals(listOf(1L, 2L), TimelineRecord.readAll(file)!!.map { it.alarmId })
+    }
+    
+    @Test
+    fun readAll_foreignFile_returnsNull() {
+        file.writeText("not a timeline file")
+        assertNull(TimelineRecord.readAll(file))
+    }
+    
+    @Test
+    fun percentiles_nearestRank_skipsIncompleteSessions() {
+        val records = (1..10).map { record(it.toLong(), TimelineStage.SOUND_STARTED to it * 10) } +
+            record(11, TimelineStage.FIRST_STEP to 5)
+        
+        val values = TimelineRecord.percentiles(records, TimelineStage.RECEIVED, TimelineStage.SOUND_STARTED,
+            0.0, 50.0, 90.0, 91.0, 100.0)
+        assertArrayEquals(longArrayOf(10, 50, 90, 100, 100), values)
+    }
+    
+    @Test
+    fun percentiles_noCompleteSession_isEmpty() {
+        val records = listOf(record(1, TimelineStage.SOUND_STARTED to 10))
+        assertEquals(0, TimelineRecord.percentiles(records, TimelineStage.SCHEDULED, TimelineStage.SOUND_STARTED, 50.0).size)
+    }
+}
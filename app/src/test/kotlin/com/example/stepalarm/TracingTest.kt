@@ -0,0 +1,55 @@
+package com.example.stepalarm
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Test
+
+class TracingTest {
+    private class RecordingBackend : Tracing.Backend {
+        val events = ArrayList<String>()
+        override fun isEnabled() = true
+        override fun beginSection(name: String) { events.add("begin $name") }
+        override fun endSection() { events.add("end") }
+        override fun setCounter(name: String, value: Long) { events.add("$name=$value") }
+    }
+    
+    @After
+    fun tearDown() {
+        Tracing.setBackend(null)
+    }
+    
+    @Test
+    fun jvmDefault_isDisabledNoOp() {
+        assertFalse(Tracing.isEnabled())
+        Tracing.beginSection("section")
+        Tracing.setCounter("counter", 1)
+        Tracing.endSection()
+    }
+    
+    @Test
+    fun installedBackend_receivesSectionsAndCounters() {
+        val backend = RecordingBackend()
+        Tracing.setBackend(backend)
+        
+        Tracing.beginSection("outer")
+        try {
+            Tracing.setCounter("step_count", 3)
+        } finally {
+            Tracing.endSection()
+        }
+        
+        assertEquals(listOf("begin outer", "step_count=3", "end"), backend.events)
+    }
+    
+    @Test
+    fun setBackendNull_restoresNoOp() {
+        val backend = RecordingBackend()
+        Tracing.setBackend(backend)
+        Tracing.setBackend(null)
+        
+        Tracing.beginSection("ignored")
+        assertFalse(Tracing.isEnabled())
+        assertEquals(emptyList<String>(), backend.events)
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.stepalarm
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.time.LocalDateTime
+import java.time.ZoneId
+import java.util.Calendar
+import java.util.Random
+
+class WeeklyFireIndexTest {
+    private val zone = ZoneId.of("America/New_York")
+    private val calculator = NextFireTimeCalculator(zone)
+    
+    private fun millis(dateTime: String): Long = LocalDateTime.parse(dateTime).atZone(zone).toInstant().toEpochMilli()
+    
+    private fun index(vararg alarms: Alarm): WeeklyFireIndex = WeeklyFireIndex.of(AlarmTable.of(alarms.toList()))
+    
+    @Test
+    fun nextFireTime_acrossSpringForward_keepsWallClockTime() {
+        val sunday = Alarm(1, 7, 0, true, setOf(Calendar.SUNDAY), true)
+        // DST starts 2026-03-08 at 02:00
+        val fire = index(sunday).nextFireTime(millis("2026-03-07T12:00"), calculator)
+        assertEquals(millis("2026-03-08T07:00"), fire)
+    }
+    
+    @Test
+    fun nextFireTime_acrossFallBack_keepsWallClockTime() {
+        val sunday = Alarm(1, 7, 0, true, setOf(Calendar.SUNDAY), true)
+        // DST ends 2026-11-01 at 02:00
+        val fire = index(sunday).nextFireTime(millis("2026-10-31T12:00"), calculator)
+        assertEquals(millis("2026-11-01T07:00"), fire)
+    }
+    
+    @Test
+    fun nextFireTime_repeatedMinute_skipsPassedFirstOccurrence() {
+        val daily = Alarm(1, 1, 45, true, (1..7).toSet(), true)
+        // 01:40 EST, the second pass through 01:00-02:00; 01:45 EDT was an hour ago
+        val now = millis("2026-11-01T01:40") + 60 * 60 * 1000L
+        val fire = index(daily).nextFireTime(now, calculator)
+        assertEquals(millis("2026-11-02T01:45"), fire)
+    }
+    
+    @Test
+    fun nextFireTime_matchesCalculatorAroundTransitions() {
+        val random = Random(3)
+        val start = millis("2026-01-01T00:00")
+        val end = millis("2028-01-01T00:00")
+        repeat(200) {
+            // Minutes outside the 02:00-03:00 gap, where both agree by definition
+            val alarms = (1L..3L).map { id ->
+                val hour = random.nextInt(23).let { if (it >= 2) it + 1 else it }
+                val days = (1..7).filter { random.nextBoolean() }.toSet()
+                Alarm(id, hour, random.nextInt(60), days.isNotEmpty(), days, true)
+            }
+            val fireIndex = WeeklyFireIndex.of(AlarmTable.of(alarms))
+            repeat(50) {
+                val now = start + (random.nextDouble() * (end - start)).toLong()
+                val expected = alarms.minOf { alarm ->
+                    val mask = if (alarm.isRepeating) alarm.getRepeatDayMask() else NextFireTimeCalculator.ALL_DAYS
+                    calculator.nextFireTime(alarm.hour, alarm.minute, mask, now)
+                }
+                assertEquals("now=$now alarms=$alarms", expected, fireIndex.nextFireTime(now, calculator))
+            }
+        }
+    }
+}